@@ -6,10 +6,13 @@
  * http://www.scireum.de - info@scireum.de
  */
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -17,17 +20,28 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
@@ -39,9 +53,23 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
 import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * Synchronizes a local directory against a SDS server.
@@ -132,9 +160,41 @@ public class SDS {
         if (empty(command)) {
             fail("Please specify which command to execute.");
         }
+        if (!server.startsWith("http")) {
+            server = "https://" + server;
+        }
         System.out.printf("   Server:      %s%n", server);
         System.out.printf("   Identity:    %s%n", identity);
         System.out.printf("   Key present: %s%n", !empty(key));
+        if (!empty(bandwidth)) {
+            try {
+                bytesPerSecond = Long.parseLong(bandwidth) * 1024;
+                availableBytes = bytesPerSecond;
+                lastRefill = System.nanoTime();
+            } catch (NumberFormatException e) {
+                verbose(e);
+            }
+            if (bytesPerSecond <= 0) {
+                fail("Please provide the bandwidth as positive number of kB/s: %s", bandwidth);
+            }
+            System.out.printf("   Bandwidth:   %s kB/s%n", bandwidth);
+        }
+        if (!empty(parallel)) {
+            try {
+                parallelism = Integer.parseInt(parallel);
+            } catch (NumberFormatException e) {
+                verbose(e);
+                parallelism = 0;
+            }
+            if (parallelism <= 0) {
+                fail("Please provide the number of parallel downloads as positive number: %s", parallel);
+            }
+            System.out.printf("   Parallel:    %s%n", parallelism);
+        }
+        if (System.getProperty("http.maxConnections") == null) {
+            // Keep an idle connection per download thread, so that each one can be reused...
+            System.setProperty("http.maxConnections", String.valueOf(Math.max(DEFAULT_MAX_CONNECTIONS, parallelism)));
+        }
         System.out.println();
     }
 
@@ -142,6 +202,11 @@ public class SDS {
     // Helper methods
     //------------------------------------------------------------------------
 
+    /**
+     * Contains the number of idle connections kept by the JDK by default.
+     */
+    private static final int DEFAULT_MAX_CONNECTIONS = 5;
+
     private boolean empty(String value) {
         return value == null || value.isEmpty();
     }
@@ -158,12 +223,7 @@ public class SDS {
         try {
             byte[] bytesOfMessage = value.getBytes("UTF-8");
             MessageDigest md = MessageDigest.getInstance("MD5");
-            byte[] digest = md.digest(bytesOfMessage);
-            StringBuilder sb = new StringBuilder(digest.length * 2);
-            for (byte b : digest) {
-                sb.append(String.format("%02x", b & 0xff));
-            }
-            return sb.toString();
+            return toHex(md.digest(bytesOfMessage));
         } catch (Throwable e) {
             verbose(e);
             fail("Cannot compute MD5 hashes...: %s", e.getMessage());
@@ -171,11 +231,66 @@ public class SDS {
         }
     }
 
+    private String toHex(byte[] data) {
+        StringBuilder sb = new StringBuilder(data.length * 2);
+        for (byte b : data) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Creates a digest to compute the SHA-256 of a file.
+     *
+     * @return the digest or <tt>null</tt> if the server didn't report a hash for the given file (it was uploaded
+     * before the server started to compute them)
+     */
+    private MessageDigest createDigest(int expectedFile) {
+        if (empty(entryHashes[expectedFile])) {
+            return null;
+        }
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Wraps the given stream, so that the CRC and the hash of the written data are computed while it is written.
+     */
+    private OutputStream checksummed(OutputStream out, CRC32 crc, MessageDigest digest) {
+        OutputStream result = new CheckedOutputStream(out, crc);
+        if (digest != null) {
+            result = new DigestOutputStream(result, digest);
+        }
+        return new BufferedOutputStream(result);
+    }
+
+    private void updateChecksums(File file, CRC32 crc, MessageDigest digest) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int read = in.read(buffer);
+            while (read > 0) {
+                crc.update(buffer, 0, read);
+                if (digest != null) {
+                    digest.update(buffer, 0, read);
+                }
+                read = in.read(buffer);
+            }
+        }
+    }
+
+    /**
+     * Contains the size of the buffer used to compute the CRC of a local file. Large reads keep fast disks busy.
+     */
+    private static final int CRC_BUFFER_SIZE = 256 * 1024;
+
     private long crc(File file) {
         try {
             CRC32 crc = new CRC32();
             try (FileInputStream in = new FileInputStream(file)) {
-                byte[] buffer = new byte[4096];
+                byte[] buffer = new byte[CRC_BUFFER_SIZE];
                 int read = in.read(buffer);
                 while (read > 0) {
                     crc.update(buffer, 0, read);
@@ -209,8 +324,12 @@ public class SDS {
     private String artifact;
     private String version;
     private String filter;
+    private String bandwidth;
+    private String parallel;
 
     private boolean debug;
+    private boolean full;
+    private boolean paranoid;
     private String timestamp =
             DateTimeFormatter.ISO_LOCAL_DATE_TIME.format(LocalDateTime.now()).replaceAll("[^0-9]", "_");
 
@@ -258,24 +377,131 @@ public class SDS {
                            + "but ask if a change should be performed or not. "
                            + "(Use -filter <pattern> to limit which files to ask for).");
         System.err.println();
+        System.err.println("pull only fetches the changes since the version it synchronized last. "
+                           + "Use -full to check all files instead.");
+        System.err.println("Use -bandwidth <kB/s> to limit the bandwidth used for downloads.");
+        System.err.println("Use -parallel <n> to download up to n files at once.");
+        System.err.println("Files whose size and modification time are unchanged since the last run are not read "
+                           + "again. Use -paranoid to check their CRC anyway.");
+        System.err.println();
         System.exit(-1);
     }
 
+    //------------------------------------------------------------------------
+    // Bandwidth limit
+    //------------------------------------------------------------------------
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    /**
+     * Contains the permitted number of bytes per second or 0 if the bandwidth isn't limited.
+     */
+    private long bytesPerSecond;
+    private long availableBytes;
+    private long lastRefill;
+
+    /**
+     * Waits until the given number of bytes may be received without exceeding the bandwidth limit.
+     * <p>
+     * This implements a token bucket which permits bursts of up to one second.
+     */
+    private void throttle(long bytes) {
+        if (bytesPerSecond <= 0 || bytes <= 0) {
+            return;
+        }
+        long delay = reserveBytes(bytes);
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay / 1_000_000, (int) (delay % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Takes the given number of bytes from the bucket and returns the nanoseconds to wait for them.
+     */
+    private synchronized long reserveBytes(long bytes) {
+        long now = System.nanoTime();
+        long refill = Math.min(now - lastRefill, NANOS_PER_SECOND) * bytesPerSecond / NANOS_PER_SECOND;
+        if (refill > 0) {
+            availableBytes += refill;
+            if (availableBytes >= bytesPerSecond) {
+                availableBytes = bytesPerSecond;
+                lastRefill = now;
+            } else {
+                lastRefill += refill * NANOS_PER_SECOND / bytesPerSecond;
+            }
+        }
+        availableBytes -= bytes;
+        return availableBytes >= 0 ? 0 : -availableBytes * NANOS_PER_SECOND / bytesPerSecond;
+    }
+
     //------------------------------------------------------------------------
     // Server communication
     //------------------------------------------------------------------------
 
     private void download(String uri, OutputStream target, boolean showProgress) {
         try {
-            URL url = makeURL(uri);
-            verbose(url);
+            transfer(uri, target, showProgress, false, 0, null);
+        } catch (IOException e) {
+            fail("An IO error occurred while calling '%s': %s", uri, e.getMessage());
+        }
+    }
+
+    /**
+     * Downloads the given URI into the given stream.
+     *
+     * @param offset if positive, only the data after the given number of bytes is requested
+     * @param etag   the ETag of the expected content, which is used to ensure that a partial download is resumed
+     *               with the same content
+     * @return <tt>true</tt> if the data was transferred, <tt>false</tt> if a partial transfer was requested but the
+     * server would send the whole content (in which case nothing is written)
+     */
+    private boolean transfer(String uri,
+                             OutputStream target,
+                             boolean showProgress,
+                             boolean acceptDeflate,
+                             long offset,
+                             String etag) throws IOException {
+        Inflater inflater = null;
+        try {
             byte[] buffer = new byte[8192];
             long bytesSoFar = 0;
             long lastBytesReported = 0;
             long lastTimeReported = System.currentTimeMillis();
-            try (InputStream in = url.openConnection().getInputStream()) {
+            HttpURLConnection connection = openConnection(uri);
+            if (offset > 0) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+                connection.setRequestProperty("If-Range", etag);
+            } else if (acceptDeflate) {
+                connection.setRequestProperty("Accept-Encoding", "deflate");
+            }
+            checkAvailable(connection);
+            checkSuccessful(connection);
+            if (offset > 0 && connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+                verbose("Cannot resume the download of " + uri);
+                discard(connection);
+                return false;
+            }
+            InputStream rawInput = connection.getInputStream();
+            if ("deflate".equalsIgnoreCase(connection.getContentEncoding())) {
+                // The server sends the raw deflate data as stored in the artifact (without a zlib header)...
+                inflater = new Inflater(true);
+                rawInput = new InflaterInputStream(rawInput, inflater, 8192);
+            }
+            long compressedBytesSoFar = 0;
+            try (InputStream in = rawInput) {
                 int read = in.read(buffer);
                 while (read > 0) {
+                    if (inflater == null) {
+                        throttle(read);
+                    } else {
+                        // Only the compressed data is actually transferred...
+                        throttle(inflater.getBytesRead() - compressedBytesSoFar);
+                        compressedBytesSoFar = inflater.getBytesRead();
+                    }
                     target.write(buffer, 0, read);
                     if (showProgress) {
                         bytesSoFar += read;
@@ -305,43 +531,20 @@ public class SDS {
                                                      (bytesDiff / 1024) / timeDiff));
                 }
             }
-        } catch (IOException e) {
-            fail("An IO error occurred while calling '%s': %s", uri, e.getMessage());
+            return true;
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
         }
     }
 
     private URL makeURL(String uri) {
         try {
-            if (!server.startsWith("http")) {
-                server = "https://" + server;
-            }
             if (empty(identity)) {
                 return new URL(server + uri);
             }
-
-            String timestamp = String.valueOf(System.currentTimeMillis() / 1000);
-            String input = identity + timestamp + key;
-            String hash = hashMD5(input);
-
-            if (uri.contains("?")) {
-                return new URL(server
-                               + uri
-                               + "&user="
-                               + urlEncode(identity)
-                               + "&timestamp="
-                               + urlEncode(timestamp)
-                               + "&hash="
-                               + urlEncode(hash));
-            } else {
-                return new URL(server
-                               + uri
-                               + "?user="
-                               + urlEncode(identity)
-                               + "&timestamp="
-                               + urlEncode(timestamp)
-                               + "&hash="
-                               + urlEncode(hash));
-            }
+            return new URL(server + uri + (uri.contains("?") ? "&" : "?") + getAuthQuery());
         } catch (MalformedURLException e) {
             verbose(e);
             fail("Cannot create a valid url. Please specify the server without a leading '/': %s", e.getMessage());
@@ -349,51 +552,558 @@ public class SDS {
         }
     }
 
-    private void downloadAndVerify(String baseURI, File file, Object expectedFile) {
-        int retries = 3;
+    private String authQuery;
+    private long authQueryTimestamp;
+
+    /**
+     * Computes the parameters which authenticate a request.
+     * <p>
+     * As the server only checks the timestamp in seconds, the parameters are computed once per second and shared by
+     * all requests.
+     */
+    private synchronized String getAuthQuery() {
+        long now = System.currentTimeMillis() / 1000;
+        if (authQuery == null || now != authQueryTimestamp) {
+            String timestamp = String.valueOf(now);
+            authQuery = "user="
+                        + urlEncode(identity)
+                        + "&timestamp="
+                        + urlEncode(timestamp)
+                        + "&hash="
+                        + urlEncode(hashMD5(identity + timestamp + key));
+            authQueryTimestamp = now;
+        }
+        return authQuery;
+    }
+
+    /**
+     * Opens a connection to the given URI of the server.
+     * <p>
+     * The JDK keeps idle connections open and reuses them for subsequent requests to the same server (keep-alive),
+     * but only if each response has been read completely and its stream has been closed. Therefore connections are
+     * never disconnected explicitly and responses which aren't used are consumed by
+     * {@link #discard(HttpURLConnection)}.
+     */
+    private HttpURLConnection openConnection(String uri) throws IOException {
+        URL url = makeURL(uri);
+        verbose(url);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setUseCaches(false);
+        return connection;
+    }
+
+    /**
+     * Contains the max number of bytes read from a response which isn't used, so that its connection can be reused.
+     * Larger responses are not worth it, so that their connection is closed instead.
+     */
+    private static final int MAX_DISCARDED_BYTES = 64 * 1024;
+
+    /**
+     * Consumes the response of the given connection, so that the connection can be reused for the next request.
+     */
+    private void discard(HttpURLConnection connection) {
+        try {
+            InputStream input = connection.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST ?
+                                connection.getErrorStream() :
+                                connection.getInputStream();
+            if (input == null) {
+                return;
+            }
+            try (InputStream in = input) {
+                byte[] buffer = new byte[8192];
+                long discarded = 0;
+                int read = in.read(buffer);
+                while (read >= 0 && discarded < MAX_DISCARDED_BYTES) {
+                    discarded += read;
+                    read = in.read(buffer);
+                }
+            }
+        } catch (IOException e) {
+            verbose(e);
+        }
+    }
+
+    /**
+     * Throws an exception if the server responded with an error, after consuming the error message.
+     */
+    private void checkSuccessful(HttpURLConnection connection) throws IOException {
+        int responseCode = connection.getResponseCode();
+        if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+            discard(connection);
+            throw new IOException("The server responded with: " + responseCode + " " + connection.getResponseMessage());
+        }
+    }
+
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long BASE_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
 
-        while (retries-- > 0) {
+    /**
+     * Contains the delay requested by the server (via <tt>Retry-After</tt>) when it rejected the last request.
+     */
+    private final ThreadLocal<Long> requestedDelay = new ThreadLocal<>();
+
+    private void downloadAndVerify(String baseURI, File file, int expectedFile) {
+        if (file.exists() && file.length() >= MIN_DELTA_SIZE) {
+            // If the server is busy, a full download would only add to its load, therefore we back off and retry...
+            for (int attempt = 1; attempt < MAX_ATTEMPTS; attempt++) {
+                if (downloadDelta(baseURI, file, expectedFile)) {
+                    return;
+                }
+                if (!isServerBusy()) {
+                    break;
+                }
+                backoff(attempt);
+            }
+        }
+        for (int attempt = 1; ; attempt++) {
             try {
                 doDownloadFile(baseURI, expectedFile, file);
-                break;
+                return;
             } catch (Throwable e) {
                 verbose(e);
-                if (retries <= 0) {
+                if (attempt >= MAX_ATTEMPTS) {
                     fail(e.getMessage());
+                    return;
+                }
+                backoff(attempt);
+            }
+        }
+    }
+
+    /**
+     * Throws an exception if the server asks us to come back later, remembering the delay it requested.
+     */
+    private void checkAvailable(HttpURLConnection connection) throws IOException {
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_UNAVAILABLE) {
+            return;
+        }
+        long delay = 0;
+        try {
+            delay = Long.parseLong(connection.getHeaderField("Retry-After").trim()) * 1000;
+        } catch (RuntimeException e) {
+            // The header is missing or contains a date, which we don't bother to parse...
+            verbose(e);
+        }
+        requestedDelay.set(delay);
+        discard(connection);
+        throw new IOException("The server is busy");
+    }
+
+    /**
+     * Determines if the last request was rejected as the server is busy.
+     */
+    private boolean isServerBusy() {
+        return requestedDelay.get() != null;
+    }
+
+    /**
+     * Waits before the given attempt is retried.
+     * <p>
+     * The delay grows exponentially and is randomized, so that many clients which were rejected at the same time
+     * don't retry at the same time. If the server requested a longer delay, this one is used.
+     */
+    private void backoff(int attempt) {
+        long delay = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt - 1, 16));
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        Long serverDelay = requestedDelay.get();
+        requestedDelay.remove();
+        if (serverDelay != null && serverDelay > delay) {
+            delay = serverDelay + ThreadLocalRandom.current().nextLong(BASE_BACKOFF_MILLIS);
+        }
+        verbose("Retrying in " + delay + " ms");
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Downloads the given file.
+     * <p>
+     * The data is written into a partial file within the {@link #PARTIAL_DIR}. If the download fails, this file is
+     * kept, so that the next attempt (or the next invocation of the client) can resume the download. The name of the
+     * file contains the CRC of the expected content, so that only a download of the same content is resumed.
+     */
+    private void doDownloadFile(String baseURI, int expectedFile, File target) throws IOException {
+        String uri = baseURI + "/" + entryNames[expectedFile];
+        long crc = entryCRCs[expectedFile];
+        long size = entrySizes[expectedFile];
+        File buffer = getExpectedFile(PARTIAL_DIR + "/" + getPartialName(expectedFile));
+        if (!buffer.getParentFile().exists()) {
+            buffer.getParentFile().mkdirs();
+        }
+        long offset = buffer.exists() && buffer.length() < size ? buffer.length() : 0;
+        boolean transferred = false;
+        CRC32 actualCRC = new CRC32();
+        MessageDigest digest = createDigest(expectedFile);
+        if (offset > 0) {
+            System.out.println(String.format("Resuming download after %s kB", offset / 1024));
+            // The checksums have to cover the data which has already been downloaded...
+            updateChecksums(buffer, actualCRC, digest);
+            try (OutputStream out = checksummed(new FileOutputStream(buffer, true), actualCRC, digest)) {
+                transferred = transfer(uri, out, true, false, offset, computeETag(crc, size));
+            }
+        }
+        if (!transferred) {
+            actualCRC.reset();
+            digest = createDigest(expectedFile);
+            try (OutputStream out = checksummed(new FileOutputStream(buffer), actualCRC, digest)) {
+                transfer(uri, out, true, true, 0, null);
+            }
+        }
+        try {
+            verifyDownload(buffer, expectedFile, actualCRC, digest);
+        } catch (IllegalStateException e) {
+            // The data is corrupt, so we must not resume this download...
+            buffer.delete();
+            throw e;
+        }
+        Files.move(buffer.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Returns the path of the partial download of the given file, relative to the {@link #PARTIAL_DIR}.
+     */
+    private String getPartialName(int expectedFile) {
+        return entryNames[expectedFile] + "." + Long.toHexString(entryCRCs[expectedFile]) + PARTIAL_SUFFIX;
+    }
+
+    /**
+     * Deletes all partial downloads which are no longer needed.
+     * <p>
+     * A partial download is only kept if its file is still part of the artifact with the same content and if the
+     * file hasn't been synchronized in the meantime (e.g. as part of a bundle).
+     */
+    private void cleanupPartialDownloads() {
+        Path partialDir = getExpectedFile(PARTIAL_DIR).toPath();
+        if (!Files.isDirectory(partialDir)) {
+            return;
+        }
+        Set<String> resumable = new TreeSet<>();
+        for (int expectedFile = 0; expectedFile < numberOfEntries; expectedFile++) {
+            if (getExpectedFile(entryNames[expectedFile]).length() != entrySizes[expectedFile]) {
+                resumable.add(getPartialName(expectedFile));
+            }
+        }
+        List<Path> paths = new ArrayList<>();
+        try (Stream<Path> stream = Files.walk(partialDir)) {
+            stream.forEach(paths::add);
+        } catch (IOException | UncheckedIOException e) {
+            verbose(e);
+            return;
+        }
+        // Children are visited after their parents, therefore deleting in reverse order removes empty directories...
+        for (int i = paths.size() - 1; i >= 0; i--) {
+            Path path = paths.get(i);
+            String name = partialDir.relativize(path).toString().replace(File.separatorChar, '/');
+            if (Files.isDirectory(path) || !resumable.contains(name)) {
+                path.toFile().delete();
+            }
+        }
+    }
+
+    /**
+     * Computes the ETag used by the server for a file with the given CRC and size.
+     */
+    private String computeETag(long crc, long size) {
+        return "\"" + Long.toHexString(crc) + "-" + Long.toHexString(size) + "\"";
+    }
+
+    /**
+     * Verifies the downloaded data using the checksums which have been computed while it was written.
+     */
+    private void verifyDownload(File buffer, int expectedFile, CRC32 actualCRC, MessageDigest digest) {
+        if (buffer.length() != entrySizes[expectedFile]) {
+            throw new IllegalStateException("Length of downloaded file '"
+                                            + entryNames[expectedFile]
+                                            + "' does not match!");
+        }
+        if (actualCRC.getValue() != entryCRCs[expectedFile]) {
+            throw new IllegalStateException("CRC of downloaded file '"
+                                            + entryNames[expectedFile]
+                                            + "' does not match!");
+        }
+        if (digest != null && !toHex(digest.digest()).equals(entryHashes[expectedFile])) {
+            throw new IllegalStateException("SHA-256 of downloaded file '"
+                                            + entryNames[expectedFile]
+                                            + "' does not match!");
+        }
+    }
+
+    //------------------------------------------------------------------------
+    // Bundle transfer...
+    //------------------------------------------------------------------------
+
+    private static final int MAX_BUNDLE_FILES = 1000;
+    private static final long MAX_BUNDLE_SIZE = 32 * 1024 * 1024;
+
+    private static final int BUNDLE_END = 0;
+    private static final int BUNDLE_ENTRY = 1;
+
+    private void downloadBundleAndVerify(String baseURI, List<File> files, List<Integer> expectedFiles) {
+        if (files.size() == 1) {
+            downloadAndVerify(baseURI, files.get(0), expectedFiles.get(0));
+            return;
+        }
+        int filesReceived = 0;
+        for (int attempt = 1; attempt < MAX_ATTEMPTS && filesReceived < files.size(); attempt++) {
+            filesReceived += downloadBundle(baseURI,
+                                            files.subList(filesReceived, files.size()),
+                                            expectedFiles.subList(filesReceived, files.size()));
+            if (!isServerBusy()) {
+                break;
+            }
+            backoff(attempt);
+        }
+        for (int i = filesReceived; i < files.size(); i++) {
+            downloadAndVerify(baseURI, files.get(i), expectedFiles.get(i));
+        }
+    }
+
+    /**
+     * Downloads the given files in a single request.
+     * <p>
+     * Each file is written into a temporary file next to its target while its CRC is computed. Once it is verified,
+     * it is moved into place.
+     *
+     * @return the number of files which were successfully downloaded
+     */
+    private int downloadBundle(String baseURI, List<File> files, List<Integer> expectedFiles) {
+        int filesReceived = 0;
+        try {
+            StringBuilder names = new StringBuilder();
+            for (int expectedFile : expectedFiles) {
+                names.append(entryNames[expectedFile]).append("\n");
+            }
+            byte[] body = names.toString().getBytes("UTF-8");
+            HttpURLConnection connection = openConnection(baseURI + "/_bundle");
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "text/plain; charset=UTF-8");
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body);
+            }
+            checkAvailable(connection);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                verbose("Bundle transfer not available (" + connection.getResponseCode() + ")");
+                discard(connection);
+                return 0;
+            }
+
+            long bytesReceived = 0;
+            byte[] buffer = new byte[8192];
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()))) {
+                while (in.readUnsignedByte() == BUNDLE_ENTRY) {
+                    if (filesReceived >= files.size()) {
+                        throw new IOException("Received more files than requested");
+                    }
+                    int expectedFile = expectedFiles.get(filesReceived);
+                    String name = in.readUTF();
+                    long size = in.readLong();
+                    long crc = in.readLong();
+                    if (!name.equals(entryNames[expectedFile])
+                        || size != entrySizes[expectedFile]
+                        || crc != entryCRCs[expectedFile]) {
+                        throw new IOException("Unexpected file in bundle: " + name);
+                    }
+                    receiveBundledFile(in, expectedFile, files.get(filesReceived), buffer);
+                    bytesReceived += size;
+                    filesReceived++;
                 }
             }
+            System.out.println(String.format("Downloaded %s files in one bundle (%s kB)",
+                                             filesReceived,
+                                             bytesReceived / 1024));
+        } catch (Throwable e) {
+            verbose(e);
+        }
+        return filesReceived;
+    }
+
+    private void receiveBundledFile(DataInputStream in, int expectedFile, File target, byte[] buffer)
+            throws IOException {
+        File parent = target.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile("sds-", ".sds", parent);
+        try {
+            CRC32 actualCRC = new CRC32();
+            MessageDigest digest = createDigest(expectedFile);
+            try (OutputStream out = checksummed(new FileOutputStream(tmp), actualCRC, digest)) {
+                long remaining = entrySizes[expectedFile];
+                while (remaining > 0) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (read < 0) {
+                        throw new IOException("Unexpected end of bundle");
+                    }
+                    throttle(read);
+                    out.write(buffer, 0, read);
+                    remaining -= read;
+                }
+            }
+            verifyDownload(tmp, expectedFile, actualCRC, digest);
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            tmp.delete();
         }
     }
 
-    private void doDownloadFile(String baseURI, Object expectedFile, File target) throws IOException {
-        File buffer = File.createTempFile("sds-", ".sds");
+    //------------------------------------------------------------------------
+    // Delta transfer (rsync like)...
+    //------------------------------------------------------------------------
+
+    /**
+     * Files smaller than this are simply downloaded again.
+     */
+    private static final long MIN_DELTA_SIZE = 64 * 1024;
+    private static final int MIN_BLOCK_SIZE = 2048;
+    private static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * Contains the directory which keeps partial downloads, so that these are neither reported as unexpected files
+     * nor moved to the trash.
+     */
+    private static final String PARTIAL_DIR = ".sds-partial";
+    private static final String PARTIAL_SUFFIX = ".sds";
+
+    private static final int DELTA_END = 0;
+    private static final int DELTA_COPY = 1;
+    private static final int DELTA_LITERAL = 2;
+
+    /**
+     * Updates the given file by only downloading the parts which changed.
+     * <p>
+     * The checksums of all blocks of the local file are sent to the server, which responds with instructions
+     * to either copy a block of the local file or to append new data.
+     *
+     * @return <tt>true</tt> if the file was updated, <tt>false</tt> if it has to be downloaded completely or if the
+     * server is busy (see {@link #isServerBusy()})
+     */
+    private boolean downloadDelta(String baseURI, File file, int expectedFile) {
+        File buffer = null;
         try {
-            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(buffer))) {
-                download(baseURI + "/" + get(expectedFile, "name"), out, true);
+            int blockSize = computeBlockSize(file.length());
+            byte[] signatures = computeSignatures(file, blockSize);
+            HttpURLConnection connection = openConnection(baseURI + "/_delta/" + entryNames[expectedFile]);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            connection.setFixedLengthStreamingMode(signatures.length);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(signatures);
             }
-            if (buffer.length() != (Long) get(expectedFile, "size")) {
-                throw new IllegalStateException("Length of downloaded file '"
-                                                + get(expectedFile, "name")
-                                                + "' does not match!");
+            checkAvailable(connection);
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                verbose("Delta transfer not available (" + connection.getResponseCode() + ")");
+                discard(connection);
+                return false;
             }
-            if (crc(buffer) != (Long) get(expectedFile, "crc")) {
-                throw new IllegalStateException("CRC of downloaded file '"
-                                                + get(expectedFile, "name")
-                                                + "' does not match!");
+
+            // The buffer is created next to the file, so that it can be renamed instead of being copied across
+            // file systems, which would leave a partially written file behind if interrupted...
+            buffer = File.createTempFile("sds-", ".sds", file.getAbsoluteFile().getParentFile());
+            long literalBytes;
+            CRC32 actualCRC = new CRC32();
+            MessageDigest digest = createDigest(expectedFile);
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+                 RandomAccessFile local = new RandomAccessFile(file, "r");
+                 OutputStream out = checksummed(new FileOutputStream(buffer), actualCRC, digest)) {
+                literalBytes = applyDelta(in, local, blockSize, out);
             }
-            Files.move(buffer.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            verifyDownload(buffer, expectedFile, actualCRC, digest);
+            Files.move(buffer.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            filesPatched.incrementAndGet();
+            System.out.println(String.format("Patched: Downloaded %s kB of %s kB",
+                                             literalBytes / 1024,
+                                             entrySizes[expectedFile] / 1024));
+            return true;
+        } catch (Throwable e) {
+            verbose(e);
+            return false;
         } finally {
-            buffer.delete();
+            if (buffer != null) {
+                buffer.delete();
+            }
+        }
+    }
+
+    private int computeBlockSize(long length) {
+        int blockSize = (int) Math.sqrt(length) & ~1023;
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+    }
+
+    private byte[] computeSignatures(File file, int blockSize) throws IOException, NoSuchAlgorithmException {
+        long numberOfBlocks = file.length() / blockSize;
+        ByteArrayOutputStream result = new ByteArrayOutputStream((int) (8 + numberOfBlocks * 20));
+        DataOutputStream out = new DataOutputStream(result);
+        out.writeInt(blockSize);
+        out.writeInt((int) numberOfBlocks);
+        MessageDigest md5 = MessageDigest.getInstance("MD5");
+        byte[] block = new byte[blockSize];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            for (long i = 0; i < numberOfBlocks; i++) {
+                in.readFully(block);
+                out.writeInt(weakChecksum(block));
+                out.write(md5.digest(block));
+            }
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Computes the rolling checksum as used by rsync (and the server).
+     */
+    private int weakChecksum(byte[] block) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < block.length; i++) {
+            int value = block[i] & 0xff;
+            a += value;
+            b += (block.length - i) * value;
+        }
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+
+    private long applyDelta(DataInputStream in, RandomAccessFile local, int blockSize, OutputStream out)
+            throws IOException {
+        long literalBytes = 0;
+        byte[] buffer = new byte[Math.max(blockSize, 8192)];
+        while (true) {
+            int instruction = in.readUnsignedByte();
+            if (instruction == DELTA_END) {
+                return literalBytes;
+            } else if (instruction == DELTA_COPY) {
+                long firstBlock = in.readInt();
+                int numberOfBlocks = in.readInt();
+                local.seek(firstBlock * blockSize);
+                for (int i = 0; i < numberOfBlocks; i++) {
+                    local.readFully(buffer, 0, blockSize);
+                    out.write(buffer, 0, blockSize);
+                }
+            } else if (instruction == DELTA_LITERAL) {
+                int length = in.readInt();
+                literalBytes += length;
+                while (length > 0) {
+                    int chunk = Math.min(length, buffer.length);
+                    in.readFully(buffer, 0, chunk);
+                    throttle(chunk);
+                    out.write(buffer, 0, chunk);
+                    length -= chunk;
+                }
+            } else {
+                throw new IOException("Unexpected delta instruction: " + instruction);
+            }
         }
     }
 
     private Object jsonCall(String uri) {
         try {
-            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-            download(uri, buffer, debug);
-
-            return parseJSON(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buffer.toByteArray()),
-                                                                      "UTF-8")));
+            HttpURLConnection connection = openConnection(uri);
+            checkSuccessful(connection);
+            try (Reader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"))) {
+                return parseJSON(in);
+            }
         } catch (Throwable e) {
             verbose(e);
             fail("Cannot download '%s' as JSON", uri);
@@ -401,6 +1111,489 @@ public class SDS {
         }
     }
 
+    //------------------------------------------------------------------------
+    // Index handling...
+    //------------------------------------------------------------------------
+
+    /*
+     * The files of the index being synchronized are kept in parallel arrays, so that an entry is identified by its
+     * position and doesn't need any objects besides its name and hash. An index might list hundreds of thousands of
+     * files, for which maps with boxed numbers would produce lots of garbage.
+     */
+    private int numberOfEntries;
+    private String[] entryNames = new String[0];
+    private long[] entrySizes = new long[0];
+    private long[] entryCRCs = new long[0];
+    private String[] entryHashes = new String[0];
+
+    /**
+     * Contains the files listed as <tt>removed</tt> by a diff.
+     */
+    private List<String> removedFiles = new ArrayList<>();
+
+    private void clearEntries() {
+        numberOfEntries = 0;
+        removedFiles.clear();
+    }
+
+    private int addEntry(String name, long size, long crc, String hash) {
+        if (numberOfEntries == entryNames.length) {
+            int capacity = Math.max(1024, 2 * entryNames.length);
+            entryNames = Arrays.copyOf(entryNames, capacity);
+            entrySizes = Arrays.copyOf(entrySizes, capacity);
+            entryCRCs = Arrays.copyOf(entryCRCs, capacity);
+            entryHashes = Arrays.copyOf(entryHashes, capacity);
+        }
+        entryNames[numberOfEntries] = name;
+        entrySizes[numberOfEntries] = size;
+        entryCRCs[numberOfEntries] = crc;
+        entryHashes[numberOfEntries] = hash;
+        return numberOfEntries++;
+    }
+
+    private static final String BINARY_INDEX_CONTENT_TYPE = "application/x-sds-index";
+    private static final int BINARY_INDEX_MAGIC = 0x53445358;
+    private static final int BINARY_INDEX_VERSION = 2;
+
+    /**
+     * Fetches an index (or a diff) and adds its files to the entries. The compact binary format is preferred, if the
+     * server offers it.
+     * <p>
+     * The response is processed while it is being received. Each file is handed to the given consumer as soon as it
+     * has been read.
+     *
+     * @return the version described by the index
+     * @throws IOException in case of an IO error or if the server reported an error
+     */
+    private String indexCall(String uri, IntConsumer entryConsumer) throws IOException {
+        clearEntries();
+        HttpURLConnection connection = openConnection(uri);
+        connection.setRequestProperty("Accept", BINARY_INDEX_CONTENT_TYPE + ", application/json");
+        checkSuccessful(connection);
+        try (InputStream in = connection.getInputStream()) {
+            if (BINARY_INDEX_CONTENT_TYPE.equals(connection.getContentType())) {
+                return readBinaryIndex(new DataInputStream(new BufferedInputStream(new GZIPInputStream(in))),
+                                       entryConsumer);
+            }
+            return readIndex(in, entryConsumer);
+        }
+    }
+
+    private String readBinaryIndex(DataInputStream in, IntConsumer entryConsumer) throws IOException {
+        if (in.readInt() != BINARY_INDEX_MAGIC) {
+            throw new IOException("Unknown index format");
+        }
+        int formatVersion = in.readInt();
+        if (formatVersion < 1 || formatVersion > BINARY_INDEX_VERSION) {
+            throw new IOException("Unknown index format");
+        }
+        String version = in.readUTF();
+        int entries = in.readInt();
+        byte[] name = new byte[256];
+        byte[] hash = new byte[32];
+        for (int i = 0; i < entries; i++) {
+            int sharedPrefix = (int) readVarLong(in);
+            int suffixLength = (int) readVarLong(in);
+            if (sharedPrefix + suffixLength > name.length) {
+                name = Arrays.copyOf(name, Math.max(2 * name.length, sharedPrefix + suffixLength));
+            }
+            in.readFully(name, sharedPrefix, suffixLength);
+            long crc = in.readInt() & 0xFFFFFFFFL;
+            long size = readVarLong(in);
+            String hexHash = null;
+            if (formatVersion >= 2) {
+                int hashLength = in.readUnsignedByte();
+                if (hashLength > hash.length) {
+                    hash = new byte[hashLength];
+                }
+                in.readFully(hash, 0, hashLength);
+                if (hashLength > 0) {
+                    hexHash = toHex(Arrays.copyOf(hash, hashLength));
+                }
+            }
+            String fileName = new String(name, 0, sharedPrefix + suffixLength, StandardCharsets.UTF_8);
+            entryConsumer.accept(addEntry(fileName, size, crc, hexHash));
+        }
+        return version;
+    }
+
+    private long readVarLong(DataInputStream in) throws IOException {
+        long result = 0;
+        int shift = 0;
+        while (true) {
+            int next = in.readUnsignedByte();
+            result |= (long) (next & 0x7F) << shift;
+            if ((next & 0x80) == 0) {
+                return result;
+            }
+            shift += 7;
+            if (shift > 63) {
+                throw new IOException("Malformed number in index");
+            }
+        }
+    }
+
+    //------------------------------------------------------------------------
+    // Streaming JSON index parser...
+    //------------------------------------------------------------------------
+
+    /**
+     * Contains the max length of a key which is recognized by the index parser. Longer keys are skipped.
+     */
+    private static final int MAX_KEY_LENGTH = 16;
+
+    /*
+     * The index parser uses buffers of its own, as the synchronized single byte operations of the JDK streams would
+     * account for most of its runtime.
+     */
+    private InputStream indexInput;
+    private byte[] indexBuffer = new byte[64 * 1024];
+    private int indexPosition;
+    private int indexLimit;
+    private byte[] indexText = new byte[256];
+    private int indexTextLength;
+    private byte[] indexKey = new byte[MAX_KEY_LENGTH];
+
+    /**
+     * Reads an index (or a diff) in JSON format, while it is being received.
+     * <p>
+     * Unlike {@link #parseJSON(Reader)}, this only knows about the structure of an index and directly fills the
+     * entries. Keys are compared as bytes and numbers are parsed without creating any objects, so that only the
+     * name and hash of each file are allocated.
+     *
+     * @param input         the raw response
+     * @param entryConsumer invoked for each file once it has been added to the entries
+     * @return the version described by the index
+     * @throws IOException in case of an IO error, a malformed response or if the server reported an error
+     */
+    private String readIndex(InputStream input, IntConsumer entryConsumer) throws IOException {
+        indexInput = input;
+        indexPosition = 0;
+        indexLimit = 0;
+        String version = null;
+        String message = null;
+        boolean error = false;
+        expectJSON('{');
+        int next = readNonWhiteSpace();
+        while (next != '}') {
+            int keyLength = readKey(next);
+            if (isKey(keyLength, "version")) {
+                version = readScalar();
+            } else if (isKey(keyLength, "files")) {
+                readIndexEntries(entryConsumer);
+            } else if (isKey(keyLength, "removed")) {
+                readRemovedEntries();
+            } else if (isKey(keyLength, "error")) {
+                error = "true".equals(readScalar());
+            } else if (isKey(keyLength, "message")) {
+                message = readScalar();
+            } else {
+                skipJSON();
+            }
+            next = readNextMember('}');
+        }
+        if (error) {
+            throw new IOException(message == null ? "The server reported an error" : message);
+        }
+        return version;
+    }
+
+    private void readIndexEntries(IntConsumer entryConsumer) throws IOException {
+        expectJSON('[');
+        int next = readNonWhiteSpace();
+        while (next != ']') {
+            if (next != '{') {
+                throw unexpectedJSON(next, '{');
+            }
+            String name = null;
+            String hash = null;
+            long size = 0;
+            long crc = 0;
+            next = readNonWhiteSpace();
+            while (next != '}') {
+                int keyLength = readKey(next);
+                if (isKey(keyLength, "name")) {
+                    name = readScalar();
+                } else if (isKey(keyLength, "size")) {
+                    size = readNumber();
+                } else if (isKey(keyLength, "crc")) {
+                    crc = readNumber();
+                } else if (isKey(keyLength, "hash")) {
+                    hash = readScalar();
+                } else {
+                    skipJSON();
+                }
+                next = readNextMember('}');
+            }
+            if (name == null) {
+                throw new IOException("Missing name of a file in the index");
+            }
+            entryConsumer.accept(addEntry(name, size, crc, hash));
+            next = readNextMember(']');
+        }
+    }
+
+    private void readRemovedEntries() throws IOException {
+        expectJSON('[');
+        int next = readNonWhiteSpace();
+        while (next != ']') {
+            if (next != '{') {
+                throw unexpectedJSON(next, '{');
+            }
+            next = readNonWhiteSpace();
+            while (next != '}') {
+                int keyLength = readKey(next);
+                if (isKey(keyLength, "name")) {
+                    removedFiles.add(readScalar());
+                } else {
+                    skipJSON();
+                }
+                next = readNextMember('}');
+            }
+            next = readNextMember(']');
+        }
+    }
+
+    private int readIndexByte() throws IOException {
+        if (indexPosition == indexLimit) {
+            indexLimit = indexInput.read(indexBuffer);
+            if (indexLimit <= 0) {
+                indexLimit = 0;
+                indexPosition = 0;
+                return -1;
+            }
+            indexPosition = 0;
+        }
+        return indexBuffer[indexPosition++] & 0xFF;
+    }
+
+    private void appendIndexText(int value) {
+        if (indexTextLength == indexText.length) {
+            indexText = Arrays.copyOf(indexText, 2 * indexText.length);
+        }
+        indexText[indexTextLength++] = (byte) value;
+    }
+
+    private int readNonWhiteSpace() throws IOException {
+        int next = readIndexByte();
+        while (next == ' ' || next == '\t' || next == '\r' || next == '\n') {
+            next = readIndexByte();
+        }
+        if (next < 0) {
+            throw new IOException("Unexpected end of the index");
+        }
+        return next;
+    }
+
+    private void expectJSON(char expected) throws IOException {
+        int next = readNonWhiteSpace();
+        if (next != expected) {
+            throw unexpectedJSON(next, expected);
+        }
+    }
+
+    private IOException unexpectedJSON(int actual, char expected) {
+        return new IOException("Unexpected JSON character: " + (char) actual + ". Expected a '" + expected + "'!");
+    }
+
+    /**
+     * Reads the separator after a member of an object or array.
+     *
+     * @return the first character of the next member or <tt>end</tt> if there are no more members
+     */
+    private int readNextMember(char end) throws IOException {
+        int next = readNonWhiteSpace();
+        if (next == ',') {
+            return readNonWhiteSpace();
+        }
+        if (next != end) {
+            throw unexpectedJSON(next, end);
+        }
+        return next;
+    }
+
+    /**
+     * Reads a key and the following colon into the given buffer.
+     *
+     * @param next the character read in front of the key
+     * @return the length of the key or -1 if it is too long to be recognized
+     */
+    private int readKey(int next) throws IOException {
+        if (next != '"') {
+            throw unexpectedJSON(next, '"');
+        }
+        int length = 0;
+        next = readIndexByte();
+        while (next != '"') {
+            if (next < 0) {
+                throw new IOException("Unexpected end of the index");
+            }
+            if (next == '\\') {
+                // None of the known keys contain escapes...
+                readIndexByte();
+                length = -1;
+            } else if (length >= 0 && length < indexKey.length) {
+                indexKey[length++] = (byte) next;
+            } else {
+                length = -1;
+            }
+            next = readIndexByte();
+        }
+        expectJSON(':');
+        return length;
+    }
+
+    private boolean isKey(int length, String expected) {
+        if (length != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (indexKey[i] != expected.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a number without creating any objects.
+     */
+    private long readNumber() throws IOException {
+        int next = readNonWhiteSpace();
+        boolean negative = next == '-';
+        if (negative) {
+            next = readIndexByte();
+        }
+        if (next < '0' || next > '9') {
+            throw new IOException("Unexpected JSON character: " + (char) next + ". Expected a number!");
+        }
+        long result = 0;
+        while (next >= '0' && next <= '9') {
+            result = result * 10 + (next - '0');
+            next = readIndexByte();
+        }
+        if (next >= 0) {
+            indexPosition--;
+        }
+        return negative ? -result : result;
+    }
+
+    /**
+     * Reads a string, number or literal (<tt>true</tt>, <tt>false</tt>, <tt>null</tt>) as string.
+     *
+     * @return the value as string or <tt>null</tt> for the literal <tt>null</tt>
+     */
+    private String readScalar() throws IOException {
+        int next = readNonWhiteSpace();
+        indexTextLength = 0;
+        if (next == '"') {
+            readString();
+            return new String(indexText, 0, indexTextLength, StandardCharsets.UTF_8);
+        }
+        while (next >= 0 && next != ',' && next != '}' && next != ']' && next > ' ') {
+            appendIndexText(next);
+            next = readIndexByte();
+        }
+        if (next >= 0) {
+            indexPosition--;
+        }
+        String result = new String(indexText, 0, indexTextLength, StandardCharsets.UTF_8);
+        return "null".equals(result) ? null : result;
+    }
+
+    /**
+     * Reads the remainder of a string (after the opening quote) as UTF-8 into the text buffer.
+     */
+    private void readString() throws IOException {
+        int next = readIndexByte();
+        while (next != '"') {
+            if (next < 0) {
+                throw new IOException("Unexpected end of the index");
+            }
+            if (next == '\\') {
+                readEscapedCharacter();
+            } else {
+                appendIndexText(next);
+            }
+            next = readIndexByte();
+        }
+    }
+
+    private void readEscapedCharacter() throws IOException {
+        int next = readIndexByte();
+        switch (next) {
+            case 'b':
+                appendIndexText('\b');
+                break;
+            case 'f':
+                appendIndexText('\f');
+                break;
+            case 'n':
+                appendIndexText('\n');
+                break;
+            case 'r':
+                appendIndexText('\r');
+                break;
+            case 't':
+                appendIndexText('\t');
+                break;
+            case 'u':
+                int codePoint = readHexCharacter();
+                if (Character.isHighSurrogate((char) codePoint)) {
+                    // Characters outside of the BMP are escaped as surrogate pair...
+                    if (readIndexByte() != '\\' || readIndexByte() != 'u') {
+                        throw new IOException("Malformed surrogate pair in the index");
+                    }
+                    codePoint = Character.toCodePoint((char) codePoint, (char) readHexCharacter());
+                }
+                for (byte b : new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8)) {
+                    appendIndexText(b);
+                }
+                break;
+            default:
+                if (next < 0) {
+                    throw new IOException("Unexpected end of the index");
+                }
+                appendIndexText(next);
+        }
+    }
+
+    private int readHexCharacter() throws IOException {
+        int result = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(readIndexByte(), 16);
+            if (digit < 0) {
+                throw new IOException("Malformed escape sequence in the index");
+            }
+            result = result * 16 + digit;
+        }
+        return result;
+    }
+
+    /**
+     * Skips a value of any type, including nested objects and arrays.
+     */
+    private void skipJSON() throws IOException {
+        int next = readNonWhiteSpace();
+        if (next != '{' && next != '[') {
+            indexPosition--;
+            readScalar();
+            return;
+        }
+        int depth = 1;
+        while (depth > 0) {
+            next = readNonWhiteSpace();
+            if (next == '{' || next == '[') {
+                depth++;
+            } else if (next == '}' || next == ']') {
+                depth--;
+            } else if (next == '"') {
+                indexTextLength = 0;
+                readString();
+            }
+        }
+    }
+
     //------------------------------------------------------------------------
     // Built-in JSON parser...
     //------------------------------------------------------------------------
@@ -578,10 +1771,24 @@ public class SDS {
         System.out.println();
     }
 
+    /**
+     * Contains the name of the file which records the version synchronized by <tt>pull</tt>.
+     */
+    private static final String VERSION_FILE = ".sds-version";
+
+    /**
+     * Contains the max number of downloads to run at once, as given by <tt>-parallel</tt>.
+     */
+    private int parallelism = 1;
+
     private Function<String, Boolean> syncHandler;
+    private List<File> scheduledFiles = new ArrayList<>();
+    private List<Integer> scheduledExpectedFiles = new ArrayList<>();
+    private boolean recordVersion;
     private Set<String> allowedFiles = new TreeSet<>();
     private AtomicInteger filesChecked = new AtomicInteger();
     private AtomicInteger filesDownloaded = new AtomicInteger();
+    private AtomicInteger filesPatched = new AtomicInteger();
     private AtomicInteger filesChanged = new AtomicInteger();
     private AtomicInteger filesAdded = new AtomicInteger();
     private AtomicInteger filesRemoved = new AtomicInteger();
@@ -618,6 +1825,7 @@ public class SDS {
     }
 
     public void pull() {
+        recordVersion = true;
         syncHandler = s -> {
             System.out.println(s);
             return true;
@@ -632,59 +1840,423 @@ public class SDS {
         if (empty(version)) {
             version = "latest";
         }
-        String baseURI = "/artifacts/" + artifact + "/" + version;
         System.out.printf("Synchronizing: %s (%s) from %s%n", artifact, version, server);
         System.out.println("-----------------------------------------------");
         System.out.println();
-        Object result = jsonCall(baseURI + "/_index");
-        if ((boolean) get(result, "error")) {
-            fail((String) get(result, "message"));
+        readSyncState();
+        if (recordVersion && !full) {
+            String syncedVersion = readSyncedVersion();
+            if (syncedVersion != null && syncChanges(syncedVersion)) {
+                return;
+            }
         }
 
+        String resolvedVersion = null;
+        try {
+            // Local files are hashed while the rest of the index is still being received...
+            resolvedVersion = indexCall("/artifacts/" + artifact + "/" + version + "/_index", expectedFile -> {
+                addAllowedPath(entryNames[expectedFile]);
+                scheduleLocalCRC(expectedFile);
+            });
+        } catch (IOException e) {
+            verbose(e);
+            fail("Cannot download the index of %s: %s", artifact, e.getMessage());
+        }
+        // Download the files of the numbered version, as "latest" might change in the meantime and can't be cached...
+        String baseURI = "/artifacts/" + artifact + "/" + (empty(resolvedVersion) ? version : resolvedVersion);
+
         allowedFiles.add("SDS.class");
         allowedFiles.add("trash/.sdsignore");
-        List<Object> expectedFiles = asArray(get(result, "files"));
-        for (Object expectedFile : expectedFiles) {
-            filesChecked.incrementAndGet();
-            String name = (String) get(expectedFile, "name");
-            addAllowedPath(name);
+        allowedFiles.add(PARTIAL_DIR + "/.sdsignore");
+        allowedFiles.add(VERSION_FILE);
+        allowedFiles.add(STATE_FILE);
+        for (int expectedFile = 0; expectedFile < numberOfEntries; expectedFile++) {
+            syncFile(baseURI, expectedFile);
+        }
+        downloadScheduled(baseURI);
+        cleanupPartialDownloads();
+        scanUnexpected("", new File("."));
+        if (recordVersion) {
+            writeSyncedVersion(resolvedVersion);
+        }
+        syncState.keySet().retainAll(allowedFiles);
+        writeSyncState();
+        printSummary();
+    }
+
+    /**
+     * Only synchronizes the files which changed since the version which was synchronized last.
+     *
+     * @return <tt>true</tt> if the changes have been applied, <tt>false</tt> if the server cannot provide them
+     */
+    private boolean syncChanges(String syncedVersion) {
+        String targetVersion;
+        try {
+            targetVersion = indexCall("/artifacts/" + artifact + "/" + syncedVersion + ".." + version + "/_diff",
+                                      this::scheduleLocalCRC);
+        } catch (IOException e) {
+            verbose(e);
+            verbose("Cannot fetch the changes since version " + syncedVersion + " - checking all files...");
+            computedCRCs.clear();
+            return false;
+        }
+        System.out.printf("Applying changes from version %s to %s%n", syncedVersion, targetVersion);
+        System.out.println();
+        String baseURI = "/artifacts/" + artifact + "/" + targetVersion;
+        for (int expectedFile = 0; expectedFile < numberOfEntries; expectedFile++) {
+            syncFile(baseURI, expectedFile);
+        }
+        downloadScheduled(baseURI);
+        for (String name : removedFiles) {
             File file = getExpectedFile(name);
-            if (!file.getParentFile().exists()) {
-                file.getParentFile().mkdirs();
-            }
-            if (!name.endsWith(".sdsignore")) {
-                if (!file.exists()) {
-                    if (syncHandler.apply(" + " + name)) {
-                        filesAdded.incrementAndGet();
-                        filesDownloaded.incrementAndGet();
-                        downloadAndVerify(baseURI, file, expectedFile);
-                    }
-                } else if (file.length() != (Long) get(expectedFile, "size")) {
-                    if (syncHandler.apply(" > " + name)) {
-                        filesChanged.incrementAndGet();
-                        filesDownloaded.incrementAndGet();
-                        downloadAndVerify(baseURI, file, expectedFile);
-                    }
-                } else if (crc(file) != (Long) get(expectedFile, "crc")) {
-                    if (syncHandler.apply(" * " + name)) {
-                        filesChanged.incrementAndGet();
-                        filesDownloaded.incrementAndGet();
-                        downloadAndVerify(baseURI, file, expectedFile);
-                    }
+            if (!name.endsWith(".sdsignore") && file.isFile()) {
+                if (syncHandler.apply(" - " + name)) {
+                    filesRemoved.incrementAndGet();
+                    moveToTrash(name.substring(0, name.lastIndexOf('/') + 1), file);
+                    syncState.remove(name);
                 }
             }
         }
-        scanUnexpected("", new File("."));
+        writeSyncedVersion(targetVersion);
+        writeSyncState();
+        printSummary();
+        return true;
+    }
+
+    private void syncFile(String baseURI, int expectedFile) {
+        filesChecked.incrementAndGet();
+        String name = entryNames[expectedFile];
+        File file = getExpectedFile(name);
+        if (!file.getParentFile().exists()) {
+            file.getParentFile().mkdirs();
+        }
+        if (!name.endsWith(".sdsignore")) {
+            if (!file.exists()) {
+                if (syncHandler.apply(" + " + name)) {
+                    filesAdded.incrementAndGet();
+                    filesDownloaded.incrementAndGet();
+                    scheduleDownload(file, expectedFile);
+                }
+            } else if (file.length() != entrySizes[expectedFile]) {
+                if (syncHandler.apply(" > " + name)) {
+                    filesChanged.incrementAndGet();
+                    filesDownloaded.incrementAndGet();
+                    scheduleDownload(file, expectedFile);
+                }
+            } else if (localCRC(name, file) != entryCRCs[expectedFile]) {
+                if (syncHandler.apply(" * " + name)) {
+                    filesChanged.incrementAndGet();
+                    filesDownloaded.incrementAndGet();
+                    scheduleDownload(file, expectedFile);
+                }
+            }
+        }
+    }
+
+    private void scheduleDownload(File file, int expectedFile) {
+        scheduledFiles.add(file);
+        scheduledExpectedFiles.add(expectedFile);
+    }
+
+    /**
+     * Downloads all scheduled files.
+     * <p>
+     * Large files which exist locally are updated using a delta transfer, all others are fetched in bundles, so that
+     * a round trip per file is avoided. If a bundle fails, the remaining files are downloaded one by one. If several
+     * downloads may run in parallel, the files are split into at least as many bundles, so that all connections are
+     * used.
+     */
+    private void downloadScheduled(String baseURI) {
+        long totalBundleSize = 0;
+        int totalBundleFiles = 0;
+        for (int i = 0; i < scheduledFiles.size(); i++) {
+            if (!isDeltaCandidate(scheduledFiles.get(i))) {
+                totalBundleSize += entrySizes[scheduledExpectedFiles.get(i)];
+                totalBundleFiles++;
+            }
+        }
+        long maxBundleSize = Math.min(MAX_BUNDLE_SIZE, totalBundleSize / parallelism + 1);
+        int maxBundleFiles = Math.min(MAX_BUNDLE_FILES, totalBundleFiles / parallelism + 1);
+
+        List<Runnable> downloads = new ArrayList<>();
+        List<File> bundleFiles = new ArrayList<>();
+        List<Integer> bundleExpectedFiles = new ArrayList<>();
+        long bundleSize = 0;
+        for (int i = 0; i < scheduledFiles.size(); i++) {
+            File file = scheduledFiles.get(i);
+            int expectedFile = scheduledExpectedFiles.get(i);
+            if (isDeltaCandidate(file)) {
+                downloads.add(() -> downloadAndVerify(baseURI, file, expectedFile));
+            } else {
+                bundleFiles.add(file);
+                bundleExpectedFiles.add(expectedFile);
+                bundleSize += entrySizes[expectedFile];
+                if (bundleFiles.size() >= maxBundleFiles || bundleSize >= maxBundleSize) {
+                    scheduleBundle(downloads, baseURI, bundleFiles, bundleExpectedFiles);
+                    bundleFiles = new ArrayList<>();
+                    bundleExpectedFiles = new ArrayList<>();
+                    bundleSize = 0;
+                }
+            }
+        }
+        scheduleBundle(downloads, baseURI, bundleFiles, bundleExpectedFiles);
+        executeDownloads(downloads);
+        for (int i = 0; i < scheduledFiles.size(); i++) {
+            // All downloads have been verified by now (otherwise we wouldn't be here)...
+            int expectedFile = scheduledExpectedFiles.get(i);
+            recordSyncState(entryNames[expectedFile],
+                            scheduledFiles.get(i),
+                            entryCRCs[expectedFile],
+                            true);
+        }
+        scheduledFiles.clear();
+        scheduledExpectedFiles.clear();
+    }
+
+    private boolean isDeltaCandidate(File file) {
+        return file.exists() && file.length() >= MIN_DELTA_SIZE;
+    }
+
+    private void scheduleBundle(List<Runnable> downloads,
+                                String baseURI,
+                                List<File> files,
+                                List<Integer> expectedFiles) {
+        if (!files.isEmpty()) {
+            downloads.add(() -> downloadBundleAndVerify(baseURI, files, expectedFiles));
+        }
+    }
+
+    /**
+     * Executes the given downloads using up to <tt>-parallel</tt> threads.
+     * <p>
+     * All decisions (and therefore all questions asked by <tt>monkey</tt>) have been made by now, so that the
+     * downloads only have to share the counters, which are atomic, and the console.
+     */
+    private void executeDownloads(List<Runnable> downloads) {
+        if (parallelism <= 1 || downloads.size() <= 1) {
+            downloads.forEach(Runnable::run);
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, downloads.size()));
+        try {
+            List<Future<?>> futures = new ArrayList<>(downloads.size());
+            for (Runnable download : downloads) {
+                futures.add(executor.submit(download));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            verbose(e.getCause());
+            fail("Failed to download a file: %s", e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail("Interrupted while downloading files");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void printSummary() {
         System.out.println("-----------------------------------------------");
         System.out.println(String.format("Files checked......%10s", filesChecked));
         System.out.println(String.format("Files added........%10s", filesAdded));
         System.out.println(String.format("Files changed......%10s", filesChanged));
         System.out.println(String.format("Files downloaded...%10s", filesDownloaded));
+        System.out.println(String.format("Files patched......%10s", filesPatched));
         System.out.println(String.format("Files removed......%10s", filesRemoved));
         System.out.println("-----------------------------------------------");
         System.out.println();
     }
 
+    /**
+     * Reads the version which was synchronized last by <tt>pull</tt>.
+     *
+     * @return the version or <tt>null</tt> if the local directory wasn't synchronized against this artifact yet
+     */
+    private String readSyncedVersion() {
+        File file = new File(VERSION_FILE);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            String[] content = new String(Files.readAllBytes(file.toPath()), "UTF-8").trim().split(":");
+            if (content.length == 2 && artifact.equals(content[0])) {
+                return content[1];
+            }
+        } catch (IOException e) {
+            verbose(e);
+        }
+        return null;
+    }
+
+    private void writeSyncedVersion(String syncedVersion) {
+        try {
+            Files.write(new File(VERSION_FILE).toPath(), (artifact + ":" + syncedVersion).getBytes("UTF-8"));
+        } catch (IOException e) {
+            verbose(e);
+        }
+    }
+
+    /**
+     * Contains the name of the file which records the CRC of each local file along with its size, modification time
+     * and inode (if supported by the file system).
+     */
+    private static final String STATE_FILE = ".sds-state";
+
+    /**
+     * Files which have been modified just before they were read might still be written to, without necessarily
+     * changing their modification time (which has a limited resolution). Therefore the CRC of such files isn't
+     * recorded.
+     */
+    private static final long MIN_STATE_AGE_MILLIS = 2000;
+
+    /**
+     * Contains the recorded state per path as "size TAB mtime TAB inode TAB crc".
+     */
+    private Map<String, String> syncState = new TreeMap<>();
+
+    /**
+     * Reads the state recorded by the last run, which permits to skip computing the CRC of unchanged files.
+     */
+    private void readSyncState() {
+        File file = new File(STATE_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                // The path is the last column, as it might contain anything but a line break...
+                String[] columns = line.split("\t", 5);
+                if (columns.length == 5) {
+                    syncState.put(columns[4], columns[0] + "\t" + columns[1] + "\t" + columns[2] + "\t" + columns[3]);
+                }
+            }
+        } catch (IOException e) {
+            verbose(e);
+            syncState.clear();
+        }
+    }
+
+    private void writeSyncState() {
+        File file = new File(STATE_FILE);
+        File tmp = new File(STATE_FILE + ".tmp");
+        try {
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp),
+                                                                        StandardCharsets.UTF_8))) {
+                for (Map.Entry<String, String> entry : syncState.entrySet()) {
+                    out.write(entry.getValue());
+                    out.write("\t");
+                    out.write(entry.getKey());
+                    out.write("\n");
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // The state is only a cache, therefore the next run will simply check all files again...
+            verbose(e);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Determines the CRC of the given local file.
+     * <p>
+     * If the file is unchanged (same size, modification time and inode) since its CRC was recorded, the recorded CRC
+     * is used, unless <tt>-paranoid</tt> is given.
+     */
+    private long localCRC(String name, File file) {
+        Long recordedCRC = getRecordedCRC(name, file);
+        if (recordedCRC != null) {
+            return recordedCRC;
+        }
+        ForkJoinTask<Long> computedCRC = computedCRCs.remove(name);
+        long crc = computedCRC != null ? computedCRC.join() : crc(file);
+        recordSyncState(name, file, crc, false);
+        return crc;
+    }
+
+    /**
+     * Returns the recorded CRC of the given file, if it is unchanged since then and <tt>-paranoid</tt> isn't given.
+     */
+    private Long getRecordedCRC(String name, File file) {
+        if (paranoid) {
+            return null;
+        }
+        String fingerprint = computeFingerprint(file);
+        String recordedState = syncState.get(name);
+        if (fingerprint != null && recordedState != null && recordedState.startsWith(fingerprint)) {
+            try {
+                return Long.parseLong(recordedState.substring(fingerprint.length()));
+            } catch (NumberFormatException e) {
+                verbose(e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Contains the CRCs being computed in advance by {@link #scheduleLocalCRC(int)}.
+     */
+    private Map<String, ForkJoinTask<Long>> computedCRCs = new ConcurrentHashMap<>();
+
+    /**
+     * Starts to compute the CRC of the local file which will be checked by {@link #syncFile(String, int)}.
+     * <p>
+     * This is invoked for each file as soon as it has been read from the index, so that the local files are hashed in
+     * parallel while the index is still being received. Only files with the expected size and without a valid
+     * recorded CRC are considered. The files are then still checked one after another, so that the changes are
+     * reported (and questions are asked) in the order of the index.
+     */
+    private void scheduleLocalCRC(int expectedFile) {
+        String name = entryNames[expectedFile];
+        File file = getExpectedFile(name);
+        if (!name.endsWith(".sdsignore")
+            && file.isFile()
+            && file.length() == entrySizes[expectedFile]
+            && getRecordedCRC(name, file) == null) {
+            // Computing CRCs is all this client does at this point, so the common pool can be used...
+            computedCRCs.put(name, ForkJoinPool.commonPool().submit(() -> crc(file)));
+        }
+    }
+
+    /**
+     * Records the CRC of the given file.
+     *
+     * @param written <tt>true</tt> if the file has just been written by us, so that it can be recorded even though
+     *                it has been modified recently
+     */
+    private void recordSyncState(String name, File file, long crc, boolean written) {
+        String fingerprint = computeFingerprint(file);
+        boolean modifiedRecently = file.lastModified() > System.currentTimeMillis() - MIN_STATE_AGE_MILLIS;
+        if (fingerprint == null || (modifiedRecently && !written)) {
+            syncState.remove(name);
+        } else {
+            syncState.put(name, fingerprint + crc);
+        }
+    }
+
+    /**
+     * Computes the part of the state which changes along with the file, terminated by a TAB.
+     *
+     * @return the size, modification time and inode of the file or <tt>null</tt> if they cannot be determined
+     */
+    private String computeFingerprint(File file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            Object fileKey = attributes.fileKey();
+            return attributes.size()
+                   + "\t"
+                   + attributes.lastModifiedTime().toMillis()
+                   + "\t"
+                   + (fileKey == null ? "-" : fileKey.toString().replaceAll("\\s", ""))
+                   + "\t";
+        } catch (IOException e) {
+            verbose(e);
+            return null;
+        }
+    }
+
     private void addAllowedPath(String name) {
         String uriPart = null;
         for (String part : name.split("/")) {
@@ -698,30 +2270,50 @@ public class SDS {
     }
 
     private void scanUnexpected(String prefix, File file) {
-        File[] children = file.listFiles();
-        if (children == null) {
-            return;
-        }
-        for (File child : children) {
-            if (child.isFile() && !allowedFiles.contains(prefix + child.getName())) {
-                if (!allowedFiles.contains(prefix + child.getName() + ".sdsignore")) {
-                    if (syncHandler.apply(" - " + prefix + child.getName())) {
+        for (Map.Entry<String, BasicFileAttributes> child : listChildren(file).entrySet()) {
+            String name = child.getKey();
+            if (child.getValue().isRegularFile() && !allowedFiles.contains(prefix + name)) {
+                if (!allowedFiles.contains(prefix + name + ".sdsignore")) {
+                    if (syncHandler.apply(" - " + prefix + name)) {
                         filesRemoved.incrementAndGet();
-                        moveToTrash(prefix, child);
+                        moveToTrash(prefix, new File(file, name));
                     }
                 }
-            } else if (child.isDirectory() && !".".equals(child.getName()) && !"..".equals(child.getName())) {
-                if (!allowedFiles.contains(prefix + child.getName() + "/.sdsignore")) {
-                    if (!allowedFiles.contains(prefix + child.getName())) {
-                        moveToTrash(prefix, child);
+            } else if (child.getValue().isDirectory()) {
+                if (!allowedFiles.contains(prefix + name + "/.sdsignore")) {
+                    if (!allowedFiles.contains(prefix + name)) {
+                        moveToTrash(prefix, new File(file, name));
                     } else {
-                        scanUnexpected(prefix + child.getName() + "/", child);
+                        scanUnexpected(prefix + name + "/", new File(file, name));
                     }
                 }
             }
         }
     }
 
+    /**
+     * Lists the children of the given directory along with their attributes, sorted by name.
+     * <p>
+     * The attributes are read by the directory walker itself, so that no additional call per file is required.
+     */
+    private Map<String, BasicFileAttributes> listChildren(File directory) {
+        Map<String, BasicFileAttributes> children = new TreeMap<>();
+        Path path = directory.toPath();
+        try (Stream<Path> stream = Files.find(path, 1, (child, attributes) -> {
+            if (!child.equals(path)) {
+                children.put(child.getFileName().toString(), attributes);
+            }
+            return false;
+        }, FileVisitOption.FOLLOW_LINKS)) {
+            stream.forEach(ignored -> {
+                // All children have been collected by the matcher...
+            });
+        } catch (IOException | UncheckedIOException e) {
+            verbose(e);
+        }
+        return children;
+    }
+
     private void moveToTrash(String prefix, File child) {
         try {
             File target = getExpectedFile("trash/" + timestamp + "/" + prefix + child.getName());
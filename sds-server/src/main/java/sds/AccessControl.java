@@ -0,0 +1,277 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hashing;
+import com.typesafe.config.Config;
+import sirius.kernel.Sirius;
+import sirius.kernel.commons.Strings;
+import sirius.kernel.di.std.Part;
+import sirius.kernel.di.std.Register;
+import sirius.kernel.extensions.Extension;
+import sirius.kernel.extensions.Extensions;
+import sirius.kernel.health.Exceptions;
+import sirius.kernel.health.Log;
+
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which user may read or write which artifact.
+ * <p>
+ * The <tt>users</tt> and <tt>artifacts</tt> sections of the config are compiled into an immutable snapshot, which is
+ * rebuilt once the system configuration is reloaded. Also, tokens (user, timestamp and hash) which have been verified
+ * are remembered for a short time, so that a client downloading many files doesn't cause the same MD5 hash to be
+ * computed for each request.
+ */
+@Register(classes = AccessControl.class)
+public class AccessControl {
+
+    private static final Log LOG = Log.get("sds");
+
+    private static final long ONE_DAY = TimeUnit.MILLISECONDS.convert(1, TimeUnit.DAYS);
+
+    /**
+     * Contains the number of verified tokens to remember.
+     */
+    private static final int MAX_VERIFIED_TOKENS = 10_000;
+
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    @Part
+    private ServerMetrics metrics;
+
+    private volatile Snapshot snapshot;
+
+    /**
+     * Contains the settings of a user as read from the config.
+     */
+    private static class User {
+        private final String key;
+        private final Set<String> artifacts;
+        private final boolean allArtifacts;
+        private final boolean writeAccess;
+
+        User(String key, Set<String> artifacts, boolean writeAccess) {
+            this.key = key;
+            this.artifacts = artifacts;
+            this.allArtifacts = artifacts.contains("*");
+            this.writeAccess = writeAccess;
+        }
+
+        boolean canAccess(String artifact) {
+            return allArtifacts || artifacts.contains(artifact);
+        }
+    }
+
+    /**
+     * Contains all known artifacts and users of a config.
+     * <p>
+     * The tokens verified against the keys of this config are remembered by the snapshot itself, so that a new config
+     * (which might change a key) starts with no verified tokens at all.
+     */
+    private static class Snapshot {
+        private final Config config;
+        private final ImmutableSet<String> artifacts;
+        private final Set<String> publicArtifacts;
+        private final ImmutableMap<String, User> users;
+        private final String monitoringToken;
+        private final Cache<String, Boolean> verifiedTokens = CacheBuilder.newBuilder()
+                                                                          .maximumSize(MAX_VERIFIED_TOKENS)
+                                                                          .expireAfterWrite(1, TimeUnit.MINUTES)
+                                                                          .build();
+
+        Snapshot(Config config,
+                 ImmutableSet<String> artifacts,
+                 Set<String> publicArtifacts,
+                 ImmutableMap<String, User> users,
+                 String monitoringToken) {
+            this.config = config;
+            this.artifacts = artifacts;
+            this.publicArtifacts = publicArtifacts;
+            this.users = users;
+            this.monitoringToken = monitoringToken;
+        }
+    }
+
+    /**
+     * Returns the names of all artifacts known to the system.
+     *
+     * @return the names of all artifacts listed in the config
+     */
+    public List<String> getArtifacts() {
+        return getSnapshot().artifacts.asList();
+    }
+
+    /**
+     * Determines if the given user may read the given artifact.
+     *
+     * @param artifact     the artifact to access
+     * @param user         the name of the user
+     * @param hash         the hash provided by the user
+     * @param timestamp    the timestamp used to compute the hash
+     * @param acceptPublic determines if public artifacts can be accessed without a valid hash
+     * @return <tt>true</tt> if the user may access the artifact, <tt>false</tt> otherwise
+     */
+    public boolean canAccess(String artifact, String user, String hash, int timestamp, boolean acceptPublic) {
+        long start = System.nanoTime();
+        try {
+            return checkAccess(artifact, user, hash, timestamp, acceptPublic);
+        } finally {
+            metrics.getAuthDuration().recordSince(start);
+        }
+    }
+
+    private boolean checkAccess(String artifact, String user, String hash, int timestamp, boolean acceptPublic) {
+        try {
+            Snapshot acl = getSnapshot();
+            if (!acl.artifacts.contains(artifact)) {
+                LOG.WARN("Rejected access to unknown artifact: " + artifact);
+                return false;
+            }
+            if (acceptPublic && acl.publicArtifacts.contains(artifact)) {
+                return true;
+            }
+            if (timestamp < TimeUnit.SECONDS.convert(System.currentTimeMillis() - ONE_DAY, TimeUnit.MILLISECONDS)) {
+                LOG.WARN("Rejected access to artifact: " + artifact + " - timestamp is outdated!");
+                return false;
+            }
+            User userAcl = acl.users.get(user == null ? "" : user);
+            if (userAcl == null) {
+                LOG.WARN("Rejected access by unknown user: " + user);
+                return false;
+            }
+            if (!userAcl.canAccess(artifact)) {
+                LOG.WARN("Rejected access by user: " + user + ". No access to artifact: " + artifact);
+                return false;
+            }
+            if (Strings.isEmpty(userAcl.key)) {
+                LOG.WARN("Rejected access by user: " + user + ". No key was given!");
+                return false;
+            }
+            if (!verifyHash(acl, user, userAcl.key, hash, timestamp)) {
+                LOG.WARN("Rejected access by user: " + user + ". Invalid hash!");
+                return false;
+            }
+
+            return true;
+        } catch (Exception e) {
+            Exceptions.handle(e);
+            return false;
+        }
+    }
+
+    /**
+     * Determines if the given artifact can be read by anyone.
+     *
+     * @param artifact the artifact to check
+     * @return <tt>true</tt> if the artifact is marked as <tt>publicAccessible</tt>, <tt>false</tt> otherwise
+     */
+    public boolean isPublic(String artifact) {
+        return getSnapshot().publicArtifacts.contains(artifact);
+    }
+
+    /**
+     * Determines if the given user may upload new versions of the given artifact.
+     *
+     * @param artifact  the artifact to upload
+     * @param user      the name of the user
+     * @param hash      the hash provided by the user
+     * @param timestamp the timestamp used to compute the hash
+     * @return <tt>true</tt> if the user may write the artifact, <tt>false</tt> otherwise
+     */
+    public boolean canWriteAccess(String artifact, String user, String hash, int timestamp) {
+        if (!canAccess(artifact, user, hash, timestamp, false)) {
+            return false;
+        }
+
+        User userAcl = getSnapshot().users.get(user);
+        return userAcl != null && userAcl.writeAccess;
+    }
+
+    /**
+     * Determines if the monitoring endpoints (<tt>/stats</tt> and <tt>/metrics</tt>) may be read.
+     * <p>
+     * As these reveal the names of artifacts and how often they are downloaded, the bearer token configured in
+     * <tt>sds.monitoring.token</tt> has to be presented. If no token is configured, monitoring is disabled.
+     *
+     * @param authorization the <tt>Authorization</tt> header of the request
+     * @return <tt>true</tt> if the configured token was presented, <tt>false</tt> otherwise
+     */
+    public boolean canMonitor(String authorization) {
+        String token = getSnapshot().monitoringToken;
+        if (Strings.isEmpty(token) || authorization == null) {
+            return false;
+        }
+        // Compare in constant time, so that the token cannot be guessed by measuring the response time...
+        return MessageDigest.isEqual((BEARER_PREFIX + token).getBytes(Charsets.UTF_8),
+                                     authorization.trim().getBytes(Charsets.UTF_8));
+    }
+
+    private boolean verifyHash(Snapshot acl, String user, String key, String hash, int timestamp) {
+        if (Strings.isEmpty(hash)) {
+            return false;
+        }
+        String token = user + "/" + timestamp + "/" + hash;
+        if (acl.verifiedTokens.getIfPresent(token) != null) {
+            return true;
+        }
+        String input = user + timestamp + key;
+        if (!Hashing.md5().newHasher().putString(input, Charsets.UTF_8).hash().toString().equals(hash)) {
+            return false;
+        }
+        acl.verifiedTokens.put(token, Boolean.TRUE);
+        return true;
+    }
+
+    private Snapshot getSnapshot() {
+        Config config = Sirius.getConfig();
+        Snapshot result = snapshot;
+        if (result == null || result.config != config) {
+            result = compile(config);
+            snapshot = result;
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Snapshot compile(Config config) {
+        ImmutableSet.Builder<String> artifacts = ImmutableSet.builder();
+        ImmutableSet.Builder<String> publicArtifacts = ImmutableSet.builder();
+        for (Extension artifact : Extensions.getExtensions("artifacts")) {
+            artifacts.add(artifact.getId());
+            if (artifact.get("publicAccessible").asBoolean(false)) {
+                publicArtifacts.add(artifact.getId());
+            }
+        }
+
+        ImmutableMap.Builder<String, User> users = ImmutableMap.builder();
+        for (Extension user : Extensions.getExtensions("users")) {
+            Collection<String> userArtifacts = (Collection<String>) user.get("artifacts").get();
+            users.put(user.getId(),
+                      new User(user.get("key").asString(),
+                               userArtifacts == null ? ImmutableSet.of() : ImmutableSet.copyOf(userArtifacts),
+                               user.get("writeAccess").asBoolean(false)));
+        }
+
+        return new Snapshot(config,
+                            artifacts.build(),
+                            publicArtifacts.build(),
+                            users.build(),
+                            config.getString("sds.monitoring.token"));
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import sirius.kernel.async.Tasks;
+import sirius.kernel.commons.Strings;
+import sirius.kernel.di.std.ConfigValue;
+import sirius.kernel.di.std.Part;
+import sirius.kernel.di.std.Register;
+import sirius.web.http.WebContext;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.function.Supplier;
+
+/**
+ * Decides which transfer is executed next by the <tt>content</tt> executor.
+ * <p>
+ * Each client (identified by its user or its IP, combined with the requested artifact) has a bounded queue of its
+ * own. Transfers are taken from these queues in a round robin fashion, so that a client requesting many files at
+ * once cannot starve others. If a queue is full, the request is answered with <tt>503 Service Unavailable</tt> and a
+ * <tt>Retry-After</tt> header, so that clients back off instead of retrying immediately. A transfer which has been
+ * accepted is only dropped if its client has closed the connection in the meantime (e.g. as it ran into a timeout),
+ * so that abandoned requests don't occupy a slot during a storm of retries.
+ * <p>
+ * A transfer counts as active until its response has been sent completely. Most responses are handed to netty and
+ * sent by the event loop after the task has returned, therefore the slot is released by the future of the response.
+ */
+@Register(classes = AdmissionControl.class)
+public class AdmissionControl {
+
+    @ConfigValue("sds.admission.maxActiveTransfers")
+    private int maxActiveTransfers;
+
+    @ConfigValue("sds.admission.maxQueuedPerClient")
+    private int maxQueuedPerClient;
+
+    @ConfigValue("sds.admission.maxQueued")
+    private int maxQueued;
+
+    @ConfigValue("sds.admission.retryAfter")
+    private int retryAfterSeconds;
+
+    @Part
+    private Tasks tasks;
+
+    @Part
+    private ServerMetrics metrics;
+
+    /**
+     * Contains the pending transfers per client, in the order in which the clients are served.
+     */
+    private final Map<String, Queue<Transfer>> queues = Maps.newLinkedHashMap();
+    private int queued;
+    private int active;
+
+    private static class Transfer {
+        private final WebContext ctx;
+        private final Supplier<ChannelFuture> task;
+
+        Transfer(WebContext ctx, Supplier<ChannelFuture> task) {
+            this.ctx = ctx;
+            this.task = task;
+        }
+
+        boolean isAbandoned() {
+            return !ctx.getCtx().channel().isActive();
+        }
+    }
+
+    /**
+     * Executes the given transfer once there is capacity left and it is the turn of the client.
+     * <p>
+     * If the transfer cannot be accepted, the request is answered with <tt>503 Service Unavailable</tt>.
+     *
+     * @param ctx      the request being answered by the transfer
+     * @param artifact the artifact being transferred
+     * @param task     the task which sends the response and returns its future or <tt>null</tt> if the response has
+     *                 already been sent completely
+     */
+    public void submit(WebContext ctx, String artifact, Supplier<ChannelFuture> task) {
+        if (!enqueue(determineClient(ctx) + "/" + artifact, new Transfer(ctx, task))) {
+            metrics.contentTaskRejected();
+            reject(ctx);
+            return;
+        }
+        dispatch();
+    }
+
+    /**
+     * Determines who sent the given request.
+     *
+     * @param ctx the request to check
+     * @return the name of the user or the IP of the client for anonymous requests
+     */
+    static String determineClient(WebContext ctx) {
+        String user = ctx.get("user").asString();
+        return Strings.isEmpty(user) ? ctx.getRemoteIP() : user;
+    }
+
+    /**
+     * Asks the client to retry the given request later.
+     *
+     * @param ctx the request to answer with <tt>503 Service Unavailable</tt>
+     */
+    void reject(WebContext ctx) {
+        ctx.respondWith()
+           .addHeader(HttpHeaders.Names.RETRY_AFTER, retryAfterSeconds)
+           .error(HttpResponseStatus.SERVICE_UNAVAILABLE, "Too many requests - please retry later");
+    }
+
+    private synchronized boolean enqueue(String client, Transfer transfer) {
+        if (queued >= maxQueued) {
+            return false;
+        }
+        Queue<Transfer> queue = queues.computeIfAbsent(client, ignored -> Queues.newArrayDeque());
+        if (queue.size() >= maxQueuedPerClient) {
+            return false;
+        }
+        queue.add(transfer);
+        queued++;
+        metrics.contentTaskQueued();
+        return true;
+    }
+
+    private void dispatch() {
+        Transfer transfer;
+        while ((transfer = next()) != null) {
+            Transfer current = transfer;
+            tasks.executor("content")
+                 .dropOnOverload(() -> {
+                     // This only happens if the executor has less threads than maxActiveTransfers...
+                     metrics.contentTaskDropped();
+                     release();
+                     reject(current.ctx);
+                 })
+                 .fork(() -> {
+                     metrics.contentTaskStarted();
+                     ChannelFuture future = null;
+                     try {
+                         future = current.task.get();
+                     } finally {
+                         if (future == null) {
+                             complete();
+                         } else {
+                             future.addListener((ChannelFutureListener) ignored -> complete());
+                         }
+                     }
+                 });
+        }
+    }
+
+    private void complete() {
+        metrics.contentTaskCompleted();
+        release();
+        dispatch();
+    }
+
+    /**
+     * Takes the next transfer of the client which is next in line.
+     * <p>
+     * Transfers whose connection has been closed while they were waiting are skipped.
+     */
+    private synchronized Transfer next() {
+        while (active < maxActiveTransfers && !queues.isEmpty()) {
+            String client = queues.keySet().iterator().next();
+            Queue<Transfer> queue = queues.remove(client);
+            Transfer result = queue.poll();
+            if (!queue.isEmpty()) {
+                // Move the client to the end of the line...
+                queues.put(client, queue);
+            }
+            queued--;
+            if (result.isAbandoned()) {
+                metrics.contentTaskAbandoned();
+            } else {
+                active++;
+                return result;
+            }
+        }
+        return null;
+    }
+
+    private synchronized void release() {
+        active--;
+    }
+}
@@ -8,6 +8,9 @@
 
 package sds;
 
+import com.google.common.base.Charsets;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
 import sirius.kernel.commons.Strings;
 import sirius.kernel.commons.Tuple;
 import sirius.kernel.commons.Value;
@@ -19,10 +22,13 @@ import sirius.kernel.nls.NLS;
 import sirius.kernel.xml.StructuredOutput;
 import sirius.web.controller.Controller;
 import sirius.web.controller.Routed;
+import sirius.web.http.Response;
 import sirius.web.http.WebContext;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.util.List;
 
 /**
@@ -55,6 +61,65 @@ public class ArtifactController implements Controller {
         ctx.respondWith().download("SDS.class").resource(getClass().getResource("/SDS.class").openConnection());
     }
 
+    @Part
+    private AccessControl accessControl;
+
+    /**
+     * Rejects the request unless it carries the monitoring token (see {@link AccessControl#canMonitor(String)}).
+     *
+     * @param ctx the request to check
+     * @return <tt>true</tt> if the request may be answered, <tt>false</tt> if it has already been rejected
+     */
+    private boolean checkMonitoringAccess(WebContext ctx) {
+        if (accessControl.canMonitor(ctx.getHeader(HttpHeaders.Names.AUTHORIZATION))) {
+            return true;
+        }
+        ctx.respondWith()
+           .addHeader(HttpHeaders.Names.WWW_AUTHENTICATE, "Bearer")
+           .error(HttpResponseStatus.UNAUTHORIZED, "Monitoring requires the token set in sds.monitoring.token");
+        return false;
+    }
+
+    @Part
+    private ZipFilePool zipFilePool;
+
+    @Routed("/stats")
+    public void stats(WebContext ctx) {
+        if (!checkMonitoringAccess(ctx)) {
+            return;
+        }
+        StructuredOutput out = ctx.respondWith().json();
+        out.beginResult();
+        try {
+            out.property("error", false);
+            out.beginObject("zipFilePool");
+            out.property("openFiles", zipFilePool.getOpenFiles());
+            out.property("evictedFilesInUse", zipFilePool.getEvictedFilesInUse());
+            out.property("maxOpenFiles", zipFilePool.getMaxOpenFiles());
+            out.property("hits", zipFilePool.getHits());
+            out.property("misses", zipFilePool.getMisses());
+            out.property("evictions", zipFilePool.getEvictions());
+            out.endObject();
+        } finally {
+            out.endResult();
+        }
+    }
+
+    @Part
+    private ServerMetrics metrics;
+
+    @Routed("/metrics")
+    public void metrics(WebContext ctx) throws IOException {
+        if (!checkMonitoringAccess(ctx)) {
+            return;
+        }
+        try (OutputStream out = ctx.respondWith()
+                                   .notCached()
+                                   .outputStream(HttpResponseStatus.OK, ServerMetrics.CONTENT_TYPE)) {
+            out.write(metrics.toPrometheusFormat().getBytes(Charsets.UTF_8));
+        }
+    }
+
     @Routed("/artifacts")
     public void artifacts(WebContext ctx) throws IOException {
         List<String> artifacts = repository.getArtifacts();
@@ -81,7 +146,7 @@ public class ArtifactController implements Controller {
 
     @Routed("/artifacts/:1")
     public void versions(WebContext ctx, String artifact) throws IOException {
-        List<Tuple<String, File>> versions = repository.getVersions(artifact);
+        List<ArtifactVersion> versions = repository.getVersions(artifact);
         StructuredOutput out = ctx.respondWith().json();
         out.beginResult();
         try {
@@ -91,13 +156,12 @@ public class ArtifactController implements Controller {
                                      ctx.get("user").asString(),
                                      ctx.get("hash").asString(),
                                      ctx.get("timestamp").asInt(0))) {
-                for (Tuple<String, File> v : versions) {
+                for (ArtifactVersion v : versions) {
                     out.beginObject("version");
                     out.property("artifact", artifact);
-                    out.property("name", v.getFirst());
-                    out.property("date",
-                                 NLS.toUserString(Value.of(v.getSecond().lastModified()).asLocalDateTime(null)));
-                    out.property("size", NLS.formatSize(v.getSecond().length()));
+                    out.property("name", String.valueOf(v.getVersion()));
+                    out.property("date", NLS.toUserString(Value.of(v.getLastModified()).asLocalDateTime(null)));
+                    out.property("size", NLS.formatSize(v.getSize()));
                     out.endObject();
                 }
             }
@@ -107,8 +171,8 @@ public class ArtifactController implements Controller {
         }
     }
 
-    @Routed("/artifacts/:1/:2/_index")
-    public void index(WebContext ctx, String artifact, String version) {
+    @Routed("/artifacts/:1/:2/_diff")
+    public void diff(WebContext ctx, String artifact, String versions) {
         final StructuredOutput out = ctx.respondWith().json();
         out.beginResult();
         try {
@@ -121,27 +185,140 @@ public class ArtifactController implements Controller {
                              Strings.apply("Cannot access '%s' as '%s'", artifact, ctx.get("user").asString()));
                 return;
             }
+            Tuple<String, String> range = Strings.split(versions, "..");
+            if (Strings.isEmpty(range.getSecond())) {
+                out.property("error", true);
+                out.property("message", "Expected a range of versions like: 41..latest");
+                return;
+            }
+            VersionDiff diff = repository.getDiff(artifact,
+                                                  Integer.parseInt(range.getFirst()),
+                                                  repository.convertVersion(artifact, range.getSecond()));
+            out.property("from", String.valueOf(diff.getFromVersion()));
+            out.property("version", String.valueOf(diff.getToVersion()));
+            out.beginArray("files");
+            for (IndexEntry entry : diff.getChangedEntries()) {
+                out.beginObject("entry");
+                out.property("name", entry.getName());
+                out.property("crc", entry.getCrc());
+                out.property("size", entry.getSize());
+                if (entry.getHash() != null) {
+                    out.property("hash", entry.getHash());
+                }
+                out.endObject();
+            }
+            out.endArray();
+            out.beginArray("removed");
+            for (String name : diff.getRemovedEntries()) {
+                out.beginObject("entry");
+                out.property("name", name);
+                out.endObject();
+            }
+            out.endArray();
+            out.property("error", false);
+        } catch (Throwable e) {
+            out.property("error", true);
+            out.property("message", Exceptions.handle(e).getMessage());
+        } finally {
+            out.endResult();
+        }
+    }
+
+    @Routed("/artifacts/:1/:2/_index")
+    public void index(WebContext ctx, String artifact, String version) {
+        long start = System.nanoTime();
+        try {
+            sendIndex(ctx, artifact, version);
+        } finally {
+            metrics.getIndexDuration().recordSince(start);
+        }
+    }
+
+    private void sendIndex(WebContext ctx, String artifact, String version) {
+        if (!repository.canAccess(artifact,
+                                  ctx.get("user").asString(),
+                                  ctx.get("hash").asString(),
+                                  ctx.get("timestamp").asInt(0))) {
+            sendError(ctx, Strings.apply("Cannot access '%s' as '%s'", artifact, ctx.get("user").asString()));
+            return;
+        }
+        boolean immutable = HttpCaching.isImmutable(version);
+        ArtifactIndex index;
+        try {
             version = String.valueOf(repository.convertVersion(artifact, version));
+            index = repository.getIndex(artifact, version);
+        } catch (Throwable e) {
+            sendError(ctx, Exceptions.handle(e).getMessage());
+            return;
+        }
+
+        boolean binary = acceptsBinaryIndex(ctx);
+        String etag = index.getETag(binary);
+        Response response = ctx.respondWith();
+        // Only public artifacts may be stored by proxies, as these don't check the credentials of a request...
+        boolean sharedCache = accessControl.isPublic(artifact);
+        if (immutable) {
+            String matchingETag = HttpCaching.findMatchingETag(ctx, etag);
+            if (matchingETag != null) {
+                HttpCaching.sendNotModified(ctx, matchingETag, HttpHeaders.Names.ACCEPT, sharedCache);
+                return;
+            }
+            HttpCaching.cached(response, sharedCache).addHeader(HttpHeaders.Names.ETAG, etag);
+        } else {
+            response.notCached();
+        }
+        response.addHeader(HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT);
+        if (binary) {
+            sendBinaryIndex(ctx, response, artifact, Integer.parseInt(version));
+            return;
+        }
+        StructuredOutput out = response.json();
+        out.beginResult();
+        try {
             out.property("version", version);
             out.beginArray("files");
-            try {
-                repository.generateIndex(artifact, version, entity -> {
-                    out.beginObject("entry");
-                    out.property("name", entity.getName());
-                    out.property("crc", entity.getCrc());
-                    out.property("size", entity.getSize());
-                    out.endObject();
-                });
-                out.endArray();
-                out.property("error", false);
-            } catch (Throwable e) {
-                out.endArray();
-                out.property("error", true);
-                out.property("message", Exceptions.handle(e).getMessage());
+            for (IndexEntry entry : index.getEntries()) {
+                out.beginObject("entry");
+                out.property("name", entry.getName());
+                out.property("crc", entry.getCrc());
+                out.property("size", entry.getSize());
+                if (entry.getHash() != null) {
+                    out.property("hash", entry.getHash());
+                }
+                out.endObject();
+            }
+            out.endArray();
+            out.property("error", false);
+        } finally {
+            out.endResult();
+        }
+    }
+
+    private boolean acceptsBinaryIndex(WebContext ctx) {
+        String accept = ctx.getHeader(HttpHeaders.Names.ACCEPT);
+        return accept != null && accept.contains(BinaryIndex.CONTENT_TYPE);
+    }
+
+    private void sendBinaryIndex(WebContext ctx, Response response, String artifact, int version) {
+        try {
+            File file = repository.getBinaryIndex(artifact, version);
+            try (OutputStream out = response.outputStream(HttpResponseStatus.OK, BinaryIndex.CONTENT_TYPE)) {
+                Files.copy(file.toPath(), out);
             }
         } catch (Throwable e) {
+            Exceptions.handle(e);
+            if (!ctx.isResponseCommitted()) {
+                ctx.respondWith().error(HttpResponseStatus.INTERNAL_SERVER_ERROR, e.getMessage());
+            }
+        }
+    }
+
+    private void sendError(WebContext ctx, String message) {
+        StructuredOutput out = ctx.respondWith().json();
+        out.beginResult();
+        try {
             out.property("error", true);
-            out.property("message", Exceptions.handle(e).getMessage());
+            out.property("message", message);
         } finally {
             out.endResult();
         }
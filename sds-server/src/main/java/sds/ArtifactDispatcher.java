@@ -8,8 +8,8 @@
 
 package sds;
 
-import com.google.common.hash.Hasher;
-import com.google.common.hash.Hashing;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
 import io.netty.handler.codec.http.HttpMethod;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import sirius.kernel.async.Tasks;
@@ -17,11 +17,10 @@ import sirius.kernel.commons.PriorityCollector;
 import sirius.kernel.di.std.Part;
 import sirius.kernel.di.std.Register;
 import sirius.kernel.health.Exceptions;
+import sirius.web.http.ContentHandler;
 import sirius.web.http.WebContext;
 import sirius.web.http.WebDispatcher;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -40,13 +39,65 @@ public class ArtifactDispatcher implements WebDispatcher {
 
     private static final Pattern UPLOAD_URI = Pattern.compile("/artifacts/([a-zA-Z0-9_\\-]+)");
     private static final Pattern DOWNLOAD_URI = Pattern.compile("/artifacts/([a-zA-Z0-9_\\-]+)/(latest|\\d+)(/.+)");
+    private static final Pattern DELTA_URI =
+            Pattern.compile("/artifacts/([a-zA-Z0-9_\\-]+)/(latest|\\d+)/_delta(/.+)");
+    private static final Pattern BUNDLE_URI = Pattern.compile("/artifacts/([a-zA-Z0-9_\\-]+)/(latest|\\d+)/_bundle");
 
     @Part
     private Repository repository;
 
     @Override
     public boolean preDispatch(WebContext ctx) throws Exception {
-        return false;
+        if (HttpMethod.POST != ctx.getRequest().getMethod() && HttpMethod.PUT != ctx.getRequest().getMethod()) {
+            return false;
+        }
+        Matcher m = UPLOAD_URI.matcher(ctx.getRequestedURI());
+        if (!m.matches()) {
+            return false;
+        }
+        if (!repository.canWriteAccess(m.group(1),
+                                       ctx.get("user").asString(),
+                                       ctx.get("hash").asString(),
+                                       ctx.get("timestamp").asInt(0))) {
+            ctx.setContentHandler(new RejectedUpload(ctx, HttpResponseStatus.UNAUTHORIZED));
+            return true;
+        }
+
+        // The upload is streamed into the repository while it is received, therefore it is hashed and stored in
+        // a single pass...
+        ctx.setContentHandler(new UploadReceiver(ctx,
+                                                 m.group(1),
+                                                 ctx.get("contentHash").asString(),
+                                                 repository,
+                                                 tasks,
+                                                 metrics));
+        return true;
+    }
+
+    /**
+     * Discards the body of an upload which has been rejected and responds once it has been received completely.
+     */
+    private static class RejectedUpload implements ContentHandler {
+
+        private final WebContext ctx;
+        private final HttpResponseStatus status;
+
+        RejectedUpload(WebContext ctx, HttpResponseStatus status) {
+            this.ctx = ctx;
+            this.status = status;
+        }
+
+        @Override
+        public void handle(ByteBuf content, boolean last) throws IOException {
+            if (last) {
+                ctx.respondWith().status(status);
+            }
+        }
+
+        @Override
+        public void cleanup() throws IOException {
+            // Nothing was stored...
+        }
     }
 
     @Override
@@ -56,7 +107,15 @@ public class ArtifactDispatcher implements WebDispatcher {
         }
         try {
             if (HttpMethod.POST == ctx.getRequest().getMethod() || HttpMethod.PUT == ctx.getRequest().getMethod()) {
-                handleZIPUpload(ctx);
+                Matcher delta = DELTA_URI.matcher(ctx.getRequestedURI());
+                Matcher bundle = BUNDLE_URI.matcher(ctx.getRequestedURI());
+                if (delta.matches() && HttpMethod.POST == ctx.getRequest().getMethod()) {
+                    handleDelta(ctx, delta);
+                } else if (bundle.matches() && HttpMethod.POST == ctx.getRequest().getMethod()) {
+                    handleBundle(ctx, bundle);
+                } else {
+                    handleZIPUpload(ctx);
+                }
                 return true;
             } else {
                 Matcher m = DOWNLOAD_URI.matcher(ctx.getRequestedURI());
@@ -80,6 +139,12 @@ public class ArtifactDispatcher implements WebDispatcher {
     @Part
     private Tasks tasks;
 
+    @Part
+    private ServerMetrics metrics;
+
+    @Part
+    private AdmissionControl admissionControl;
+
     private void handleFileDownload(WebContext ctx, Matcher m) throws IOException {
         final String artifact = m.group(1);
         String version = m.group(2);
@@ -89,62 +154,62 @@ public class ArtifactDispatcher implements WebDispatcher {
                                  ctx.get("hash").asString(),
                                  ctx.get("timestamp").asInt(0))) {
             final int v = repository.convertVersion(artifact, version);
-            tasks.executor("content")
-                 .dropOnOverload(() -> ctx.respondWith()
-                                          .error(HttpResponseStatus.INTERNAL_SERVER_ERROR,
-                                                 "Request dropped - System overload!"))
-                 .fork(() -> {
-                     try {
-                         repository.sendContent(artifact, v, path, ctx);
-                     } catch (IOException e) {
-                         Exceptions.ignore(e);
-                     }
-                 });
+            final boolean immutable = HttpCaching.isImmutable(version);
+            forkContentTask(ctx, artifact, () -> repository.sendContent(artifact, v, path, immutable, ctx));
         } else {
             ctx.respondWith().status(HttpResponseStatus.UNAUTHORIZED);
         }
     }
 
-    private void handleZIPUpload(WebContext ctx) throws IOException {
-        Matcher m = UPLOAD_URI.matcher(ctx.getRequestedURI());
-        if (!m.matches()) {
-            ctx.respondWith().error(HttpResponseStatus.BAD_REQUEST, "Expected an URI like /artifacts/package-name");
-            return;
-        }
-        File file = ctx.getContentAsFile();
-        if (file == null) {
-            ctx.respondWith().error(HttpResponseStatus.BAD_REQUEST, "File-Upload expected!");
+    private void handleDelta(WebContext ctx, Matcher m) throws IOException {
+        final String artifact = m.group(1);
+        final String path = m.group(3);
+        if (!repository.canAccess(artifact,
+                                  ctx.get("user").asString(),
+                                  ctx.get("hash").asString(),
+                                  ctx.get("timestamp").asInt(0))) {
+            ctx.respondWith().status(HttpResponseStatus.UNAUTHORIZED);
             return;
         }
-        if (ctx.get("contentHash").isFilled()) {
-            String computedContentHash = computeContentHash(ctx);
-            String givenContentHash = ctx.get("contentHash").asString();
-            if (!computedContentHash.equals(givenContentHash)) {
-                ctx.respondWith().error(HttpResponseStatus.BAD_REQUEST, "MD5 checksum mismatch");
-                return;
-            }
-        }
-        if (repository.canWriteAccess(m.group(1),
-                                      ctx.get("user").asString(),
-                                      ctx.get("hash").asString(),
-                                      ctx.get("timestamp").asInt(0))) {
-            repository.handleUpload(m.group(1), ctx.getContentAsFile());
-            ctx.respondWith().status(HttpResponseStatus.OK);
-        } else {
+        final int v = repository.convertVersion(artifact, m.group(2));
+        forkContentTask(ctx, artifact, () -> repository.sendDelta(artifact, v, path, ctx));
+    }
+
+    private void handleBundle(WebContext ctx, Matcher m) throws IOException {
+        final String artifact = m.group(1);
+        if (!repository.canAccess(artifact,
+                                  ctx.get("user").asString(),
+                                  ctx.get("hash").asString(),
+                                  ctx.get("timestamp").asInt(0))) {
             ctx.respondWith().status(HttpResponseStatus.UNAUTHORIZED);
+            return;
         }
+        final int v = repository.convertVersion(artifact, m.group(2));
+        forkContentTask(ctx, artifact, () -> repository.sendBundle(artifact, v, ctx));
     }
 
-    private String computeContentHash(WebContext ctx) throws IOException {
-        Hasher h = Hashing.md5().newHasher();
-        try (FileInputStream in = new FileInputStream(ctx.getContentAsFile())) {
-            byte[] buffer = new byte[8192];
-            int read = in.read(buffer);
-            while (read > 0) {
-                h.putBytes(buffer, 0, read);
-                read = in.read(buffer);
+    /**
+     * Sends content using the <tt>content</tt> executor, so that the number of concurrent transfers is limited.
+     * <p>
+     * The {@link AdmissionControl} decides when a transfer is executed, so that all clients get their fair share.
+     */
+    private void forkContentTask(WebContext ctx, String artifact, ContentTask task) {
+        admissionControl.submit(ctx, artifact, () -> {
+            try {
+                return task.execute();
+            } catch (IOException e) {
+                Exceptions.ignore(e);
+                return null;
             }
-        }
-        return h.hash().toString();
+        });
+    }
+
+    private interface ContentTask {
+        ChannelFuture execute() throws IOException;
+    }
+
+    private void handleZIPUpload(WebContext ctx) throws IOException {
+        // Valid uploads are already handled in preDispatch...
+        ctx.respondWith().error(HttpResponseStatus.BAD_REQUEST, "Expected an URI like /artifacts/package-name");
     }
 }
@@ -0,0 +1,222 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import sirius.kernel.commons.Strings;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Contains all files of a version of an artifact.
+ * <p>
+ * The index is computed once when an artifact is uploaded and stored as sidecar file next to the
+ * <tt>artifact.zip</tt>. Therefore the ZIP file doesn't need to be parsed for each index request or download.
+ */
+public class ArtifactIndex {
+
+    /**
+     * Contains the name of the sidecar file which is placed next to the <tt>artifact.zip</tt>.
+     */
+    public static final String INDEX_FILE = "artifact.idx";
+
+    private static final int MAGIC = 0x53445349;
+    static final int FORMAT_VERSION = 2;
+    private static final int FLAG_BLOB_STORAGE = 1;
+    private static final String BINARY_ETAG_SUFFIX = "-bin";
+
+    private final List<IndexEntry> entries;
+    private final Map<String, IndexEntry> entriesByName;
+    private final boolean blobStorage;
+    private volatile String entriesHash;
+
+    /**
+     * Creates a new index for the given entries.
+     *
+     * @param entries     the files of the artifact
+     * @param blobStorage <tt>true</tt> if the data of the entries resides in the {@link BlobStore}, <tt>false</tt>
+     *                    if it resides in the <tt>artifact.zip</tt>
+     */
+    public ArtifactIndex(List<IndexEntry> entries, boolean blobStorage) {
+        this.blobStorage = blobStorage;
+        this.entries = Collections.unmodifiableList(entries);
+        this.entriesByName = Maps.newHashMapWithExpectedSize(entries.size());
+        for (IndexEntry entry : entries) {
+            entriesByName.putIfAbsent(entry.getName(), entry);
+        }
+    }
+
+    /**
+     * Computes the index by reading the central directory of the given ZIP file.
+     *
+     * @param zipFile the artifact to scan
+     * @return the index of all files in the given artifact
+     * @throws IOException in case of an IO error or if the file isn't a valid ZIP archive
+     */
+    public static ArtifactIndex scan(File zipFile) throws IOException {
+        List<IndexEntry> entries = Lists.newArrayList();
+        ZipDirectory.read(zipFile, entries::add);
+        return new ArtifactIndex(entries, false);
+    }
+
+    /**
+     * Reads an index which was previously stored using {@link #write(File)}.
+     *
+     * @param file the sidecar file to read
+     * @return the index read from the given file
+     * @throws IOException in case of an IO error or if the file has an unknown format
+     */
+    public static ArtifactIndex read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(Strings.apply("Unknown index format: %s", file.getAbsolutePath()));
+            }
+            int formatVersion = in.readInt();
+            if (formatVersion < 1 || formatVersion > FORMAT_VERSION) {
+                throw new IOException(Strings.apply("Unknown index format: %s", file.getAbsolutePath()));
+            }
+            int flags = formatVersion >= 2 ? in.readInt() : 0;
+            int numEntries = in.readInt();
+            List<IndexEntry> entries = Lists.newArrayListWithCapacity(numEntries);
+            for (int i = 0; i < numEntries; i++) {
+                entries.add(readEntry(in, formatVersion));
+            }
+            return new ArtifactIndex(entries, (flags & FLAG_BLOB_STORAGE) != 0);
+        }
+    }
+
+    /**
+     * Stores the index in the given file.
+     * <p>
+     * The data is first written into a temporary file which is then moved into place, so that readers never see a
+     * partially written index.
+     *
+     * @param file the sidecar file to write
+     * @throws IOException in case of an IO error
+     */
+    public void write(File file) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(blobStorage ? FLAG_BLOB_STORAGE : 0);
+            out.writeInt(entries.size());
+            for (IndexEntry entry : entries) {
+                writeEntry(out, entry);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads an entry as written by {@link #writeEntry(DataOutputStream, IndexEntry)}.
+     *
+     * @param in            the stream to read from
+     * @param formatVersion the format version of the file being read
+     * @return the entry read from the stream
+     * @throws IOException in case of an IO error
+     */
+    static IndexEntry readEntry(DataInputStream in, int formatVersion) throws IOException {
+        String name = in.readUTF();
+        long size = in.readLong();
+        long crc = in.readLong();
+        long compressedSize = in.readLong();
+        int method = in.readInt();
+        long dataOffset = in.readLong();
+        String hash = formatVersion >= 2 ? in.readUTF() : "";
+        return new IndexEntry(name, size, crc, compressedSize, method, dataOffset, hash.isEmpty() ? null : hash);
+    }
+
+    /**
+     * Writes the given entry in the current format.
+     *
+     * @param out   the stream to write to
+     * @param entry the entry to write
+     * @throws IOException in case of an IO error
+     */
+    static void writeEntry(DataOutputStream out, IndexEntry entry) throws IOException {
+        out.writeUTF(entry.getName());
+        out.writeLong(entry.getSize());
+        out.writeLong(entry.getCrc());
+        out.writeLong(entry.getCompressedSize());
+        out.writeInt(entry.getMethod());
+        out.writeLong(entry.getDataOffset());
+        out.writeUTF(entry.getHash() == null ? "" : entry.getHash());
+    }
+
+    /**
+     * Returns all files in the order of the central directory of the artifact.
+     *
+     * @return an unmodifiable list of all files
+     */
+    public List<IndexEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Looks up the file with the given path.
+     *
+     * @param name the path of the file within the artifact
+     * @return the entry for the given path or <tt>null</tt> if there is no such file
+     */
+    public IndexEntry getEntry(String name) {
+        return entriesByName.get(name);
+    }
+
+    /**
+     * Determines if the data of the files resides in the {@link BlobStore} or in the <tt>artifact.zip</tt>.
+     *
+     * @return <tt>true</tt> if the data is kept in the blob store, <tt>false</tt> otherwise
+     */
+    public boolean isBlobStorage() {
+        return blobStorage;
+    }
+
+    /**
+     * Returns a strong ETag which is derived from the names, checksums and sizes of all files.
+     * <p>
+     * As the JSON and the binary representation of an index are different responses, each has an ETag of its own.
+     *
+     * @param binary <tt>true</tt> for the ETag of the binary representation (see {@link BinaryIndex}),
+     *               <tt>false</tt> for the one of the JSON representation
+     * @return the quoted ETag of the requested representation of the index
+     */
+    public String getETag(boolean binary) {
+        String result = entriesHash;
+        if (result == null) {
+            Hasher hasher = Hashing.sha1().newHasher();
+            for (IndexEntry entry : entries) {
+                hasher.putString(entry.getName(), Charsets.UTF_8).putLong(entry.getCrc()).putLong(entry.getSize());
+            }
+            result = hasher.hash().toString();
+            entriesHash = result;
+        }
+        return binary ? "\"" + result + BINARY_ETAG_SUFFIX + "\"" : "\"" + result + "\"";
+    }
+
+    public int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import java.io.File;
+
+/**
+ * Describes a stored version of an artifact as kept by the {@link VersionCatalog}.
+ */
+public class ArtifactVersion {
+
+    private final String artifact;
+    private final int version;
+    private final File directory;
+    private final long size;
+    private final long lastModified;
+    private final int numberOfFiles;
+
+    /**
+     * Creates a new version.
+     *
+     * @param artifact      the name of the artifact
+     * @param version       the version number
+     * @param directory     the directory which contains the data of the version
+     * @param size          the number of bytes occupied by the version
+     * @param lastModified  the timestamp when the version was uploaded
+     * @param numberOfFiles the number of files in the version
+     */
+    public ArtifactVersion(String artifact,
+                           int version,
+                           File directory,
+                           long size,
+                           long lastModified,
+                           int numberOfFiles) {
+        this.artifact = artifact;
+        this.version = version;
+        this.directory = directory;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.numberOfFiles = numberOfFiles;
+    }
+
+    public String getArtifact() {
+        return artifact;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public int getNumberOfFiles() {
+        return numberOfFiles;
+    }
+
+    @Override
+    public String toString() {
+        return artifact + "/" + version;
+    }
+}
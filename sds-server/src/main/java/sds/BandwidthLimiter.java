@@ -0,0 +1,115 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+import sirius.kernel.di.std.ConfigValue;
+import sirius.kernel.di.std.Register;
+import sirius.web.http.WebContext;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the bandwidth used to send files.
+ * <p>
+ * A limit can be configured for the server as a whole, per client (user or IP) and per artifact. Each limit is
+ * enforced by a {@link TokenBucket}. A transfer has to obey all limits which apply to it. Throttled transfers
+ * are sent by netty itself (see {@link ThrottledChunkedInput}) so that waiting for the next tokens doesn't block a
+ * thread.
+ */
+@Register(classes = BandwidthLimiter.class)
+public class BandwidthLimiter {
+
+    @ConfigValue("sds.bandwidth.global")
+    private long globalKiloBytesPerSecond;
+
+    @ConfigValue("sds.bandwidth.perClient")
+    private long clientKiloBytesPerSecond;
+
+    @ConfigValue("sds.bandwidth.perArtifact")
+    private long artifactKiloBytesPerSecond;
+
+    private volatile TokenBucket globalBucket;
+
+    private final LoadingCache<String, TokenBucket> clientBuckets = createBuckets(() -> clientKiloBytesPerSecond);
+
+    private final LoadingCache<String, TokenBucket> artifactBuckets = createBuckets(() -> artifactKiloBytesPerSecond);
+
+    private static LoadingCache<String, TokenBucket> createBuckets(LongSupplier kiloBytesPerSecond) {
+        // Buckets of clients which are gone are discarded - an idle bucket is full anyway...
+        return CacheBuilder.newBuilder()
+                           .expireAfterAccess(10, TimeUnit.MINUTES)
+                           .build(CacheLoader.from(ignored -> new TokenBucket(kiloBytesPerSecond.getAsLong() * 1024)));
+    }
+
+    /**
+     * Determines the limits which apply to the given request.
+     *
+     * @param ctx      the request to send a response for
+     * @param artifact the artifact being sent
+     * @return the limits to obey or <tt>null</tt> if the transfer isn't limited at all
+     */
+    public Throttle getThrottle(WebContext ctx, String artifact) {
+        List<TokenBucket> buckets = Lists.newArrayListWithCapacity(3);
+        if (globalKiloBytesPerSecond > 0) {
+            buckets.add(getGlobalBucket());
+        }
+        if (clientKiloBytesPerSecond > 0) {
+            buckets.add(clientBuckets.getUnchecked(AdmissionControl.determineClient(ctx)));
+        }
+        if (artifactKiloBytesPerSecond > 0) {
+            buckets.add(artifactBuckets.getUnchecked(artifact));
+        }
+        return buckets.isEmpty() ? null : new Throttle(buckets);
+    }
+
+    private TokenBucket getGlobalBucket() {
+        TokenBucket result = globalBucket;
+        if (result == null) {
+            synchronized (this) {
+                if (globalBucket == null) {
+                    globalBucket = new TokenBucket(globalKiloBytesPerSecond * 1024);
+                }
+                result = globalBucket;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Combines all limits which apply to a transfer.
+     */
+    public static class Throttle {
+
+        private final List<TokenBucket> buckets;
+
+        Throttle(List<TokenBucket> buckets) {
+            this.buckets = buckets;
+        }
+
+        /**
+         * Takes the given number of bytes from all applicable limits.
+         *
+         * @param bytes the number of bytes about to be sent
+         * @return the number of nanoseconds to wait before the bytes may be sent
+         */
+        long reserve(long bytes) {
+            long delay = 0;
+            for (TokenBucket bucket : buckets) {
+                delay = Math.max(delay, bucket.reserve(bytes));
+            }
+            return delay;
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the compact binary representation of an index, which is offered to clients as alternative to JSON.
+ * <p>
+ * For artifacts with many files, the JSON index gets quite large. As paths within an artifact share long prefixes,
+ * each name is only stored as the number of bytes shared with the previous name plus the remaining bytes. The whole
+ * stream is GZIP compressed (as part of the format, not as transfer encoding, so that it can be stored and sent as
+ * is). All numbers are in network byte order, <tt>varint</tt> denotes an unsigned LEB128 number:
+ * <pre>
+ * int    magic (SDSX)
+ * int    formatVersion
+ * UTF    version
+ * int    numberOfEntries
+ * numberOfEntries times: varint sharedPrefix, varint suffixLength, byte[suffixLength] suffix, int crc, varint size,
+ *                        byte hashLength, byte[hashLength] hash
+ * </pre>
+ * The hash is the raw SHA-256 of the file (see {@link EntryHasher}) or empty for versions uploaded before hashes were
+ * computed. Format version 1 has no hash at all.
+ */
+class BinaryIndex {
+
+    /**
+     * Contains the content type used to negotiate the binary index format.
+     */
+    static final String CONTENT_TYPE = "application/x-sds-index";
+
+    /**
+     * Contains the name of the sidecar file which caches the binary index of a version.
+     */
+    static final String BINARY_INDEX_FILE = "artifact.sdsx";
+
+    private static final int MAGIC = 0x53445358;
+    private static final int FORMAT_VERSION = 2;
+
+    private BinaryIndex() {
+    }
+
+    /**
+     * Writes the binary representation of the given index into the given file.
+     *
+     * @param file    the file to write
+     * @param version the version described by the index
+     * @param index   the index to write
+     * @throws IOException in case of an IO error
+     */
+    static void write(File file, int version, ArtifactIndex index) throws IOException {
+        // Two requests might create the file at the same time, therefore each one uses a temporary file of its own...
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try {
+            try (OutputStream output = new GZIPOutputStream(new FileOutputStream(tmp))) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(output));
+                write(out, version, index);
+                out.flush();
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    private static void write(DataOutputStream out, int version, ArtifactIndex index) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(String.valueOf(version));
+        out.writeInt(index.size());
+        byte[] previousName = new byte[0];
+        for (IndexEntry entry : index.getEntries()) {
+            byte[] name = entry.getName().getBytes(Charsets.UTF_8);
+            int sharedPrefix = 0;
+            int maxPrefix = Math.min(name.length, previousName.length);
+            while (sharedPrefix < maxPrefix && name[sharedPrefix] == previousName[sharedPrefix]) {
+                sharedPrefix++;
+            }
+            writeVarLong(out, sharedPrefix);
+            writeVarLong(out, name.length - sharedPrefix);
+            out.write(name, sharedPrefix, name.length - sharedPrefix);
+            out.writeInt((int) entry.getCrc());
+            writeVarLong(out, entry.getSize());
+            if (entry.getHash() == null) {
+                out.writeByte(0);
+            } else {
+                byte[] hash = BaseEncoding.base16().lowerCase().decode(entry.getHash());
+                out.writeByte(hash.length);
+                out.write(hash);
+            }
+            previousName = name;
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.collect.Sets;
+import sirius.kernel.commons.Strings;
+import sirius.kernel.di.std.ConfigValue;
+import sirius.kernel.di.std.Register;
+import sirius.kernel.health.Exceptions;
+import sirius.kernel.health.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Stores the files of artifacts as content addressed blobs, so that files which are shared by several versions are
+ * only stored once.
+ * <p>
+ * Each blob is named by the SHA-256 hash of its (uncompressed) content. The data is kept as found in the uploaded ZIP
+ * file (either stored or deflated), so that it can still be sent as is. The {@link ArtifactIndex} of a version acts as
+ * its manifest, as it lists the hash of each file.
+ * <p>
+ * The store counts how many entries in all manifests reference a blob. Once a version is deleted, all blobs which are
+ * no longer referenced are queued for deletion. These are deleted by the {@link RetentionJanitor} in the background,
+ * so that the deletion obeys its I/O budget and doesn't block uploads.
+ */
+@Register(classes = BlobStore.class)
+public class BlobStore {
+
+    private static final Log LOG = Log.get("sds");
+
+    /**
+     * Contains the name of the directory within the repository which contains all blobs.
+     */
+    public static final String BLOB_DIR = ".blobs";
+
+    private static final String DEFLATED_SUFFIX = ".deflate";
+
+    @ConfigValue("sds.repositoryPath")
+    private String repositoryPath;
+
+    private Map<String, Integer> references;
+
+    private final Queue<String> unreferencedBlobs = Queues.newConcurrentLinkedQueue();
+
+    /**
+     * Moves all files of the given ZIP file into the blob store.
+     *
+     * @param zipFile the uploaded artifact
+     * @param index   the index of the given artifact, including the hash of each entry (see {@link EntryHasher})
+     * @return a new index, which refers to the blobs of the files instead of the ZIP file
+     * @throws IOException in case of an IO error or if the ZIP file contains unsupported entries
+     */
+    public ArtifactIndex store(File zipFile, ArtifactIndex index) throws IOException {
+        for (IndexEntry entry : index.getEntries()) {
+            if (entry.getMethod() != IndexEntry.STORED && entry.getMethod() != IndexEntry.DEFLATED) {
+                throw new IOException(Strings.apply("Unsupported compression method (%s) for: %s",
+                                                    entry.getMethod(),
+                                                    entry.getName()));
+            }
+            if (entry.getHash() == null) {
+                throw new IOException(Strings.apply("Unknown hash for: %s", entry.getName()));
+            }
+        }
+
+        // Reference all blobs before writing them, so that a concurrent deletion of another version doesn't remove a
+        // blob which is about to be re-used by this version...
+        ArtifactIndex result = new ArtifactIndex(index.getEntries(), true);
+        acquire(result);
+        try {
+            List<IndexEntry> blobEntries = Lists.newArrayListWithCapacity(index.size());
+            try (RandomAccessFile raf = new RandomAccessFile(zipFile, "r")) {
+                for (IndexEntry entry : index.getEntries()) {
+                    blobEntries.add(storeBlob(raf.getChannel(), entry));
+                }
+            }
+            return new ArtifactIndex(blobEntries, true);
+        } catch (IOException | RuntimeException e) {
+            release(result);
+            throw e;
+        }
+    }
+
+    private IndexEntry storeBlob(FileChannel zipChannel, IndexEntry entry) throws IOException {
+        File stored = getBlobFile(entry.getHash(), IndexEntry.STORED);
+        if (stored.exists()) {
+            return withBlob(entry, IndexEntry.STORED, entry.getSize());
+        }
+        File deflated = getBlobFile(entry.getHash(), IndexEntry.DEFLATED);
+        if (deflated.exists()) {
+            return withBlob(entry, IndexEntry.DEFLATED, deflated.length());
+        }
+
+        File blob = entry.getMethod() == IndexEntry.STORED ? stored : deflated;
+        blob.getParentFile().mkdirs();
+        File tmp = new File(blob.getParentFile(), "." + UUID.randomUUID().toString());
+        try {
+            try (FileChannel out = new FileOutputStream(tmp).getChannel()) {
+                long position = entry.getDataOffset();
+                long remaining = entry.getCompressedSize();
+                while (remaining > 0) {
+                    long transferred = zipChannel.transferTo(position, remaining, out);
+                    if (transferred <= 0) {
+                        throw new IOException(Strings.apply("Cannot read the data of: %s", entry.getName()));
+                    }
+                    position += transferred;
+                    remaining -= transferred;
+                }
+            }
+            Files.move(tmp.toPath(), blob.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tmp.delete();
+        }
+
+        return withBlob(entry, entry.getMethod(), entry.getCompressedSize());
+    }
+
+    private IndexEntry withBlob(IndexEntry entry, int method, long compressedSize) {
+        return new IndexEntry(entry.getName(),
+                              entry.getSize(),
+                              entry.getCrc(),
+                              compressedSize,
+                              method,
+                              0,
+                              entry.getHash());
+    }
+
+    /**
+     * Returns the file which contains the data of the given entry.
+     *
+     * @param entry the entry of an index stored in the blob store
+     * @return the blob containing the data as described by the entry
+     */
+    public File getBlobFile(IndexEntry entry) {
+        return getBlobFile(entry.getHash(), entry.getMethod());
+    }
+
+    private File getBlobFile(String hash, int method) {
+        File dir = new File(new File(repositoryPath, BLOB_DIR), hash.substring(0, 2));
+        return new File(dir, method == IndexEntry.DEFLATED ? hash + DEFLATED_SUFFIX : hash);
+    }
+
+    /**
+     * Opens the uncompressed content of the given entry.
+     *
+     * @param entry the entry of an index stored in the blob store
+     * @return a stream providing the uncompressed content
+     * @throws IOException in case of an IO error
+     */
+    public InputStream openStream(IndexEntry entry) throws IOException {
+        InputStream in = new FileInputStream(getBlobFile(entry));
+        if (entry.getMethod() != IndexEntry.DEFLATED) {
+            return in;
+        }
+        Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(in, inflater, 8192) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * Releases all blobs referenced by the given index (usually of a version which is being deleted).
+     * <p>
+     * Blobs which are no longer referenced by any version are queued for deletion (see
+     * {@link #deleteUnreferencedBlobs(int)}).
+     *
+     * @param index the index of the version being deleted
+     */
+    public synchronized void release(ArtifactIndex index) {
+        if (!index.isBlobStorage()) {
+            return;
+        }
+        Map<String, Integer> refs = getReferences();
+        for (IndexEntry entry : index.getEntries()) {
+            Integer count = refs.get(entry.getHash());
+            if (count == null || count <= 1) {
+                refs.remove(entry.getHash());
+                unreferencedBlobs.add(entry.getHash());
+            } else {
+                refs.put(entry.getHash(), count - 1);
+            }
+        }
+    }
+
+    /**
+     * Deletes blobs which have been queued by {@link #release(ArtifactIndex)}.
+     * <p>
+     * A blob which has been referenced again in the meantime (by an upload containing the same file) is kept. The
+     * lock of the store is only held while a single blob is deleted, so that uploads aren't blocked.
+     *
+     * @param budget the max number of blobs to delete
+     * @return the number of blobs which have been processed
+     */
+    public int deleteUnreferencedBlobs(int budget) {
+        int processed = 0;
+        String hash;
+        while (processed < budget && (hash = unreferencedBlobs.poll()) != null) {
+            deleteIfUnreferenced(hash);
+            processed++;
+        }
+        return processed;
+    }
+
+    private synchronized void deleteIfUnreferenced(String hash) {
+        if (!getReferences().containsKey(hash)) {
+            getBlobFile(hash, IndexEntry.STORED).delete();
+            getBlobFile(hash, IndexEntry.DEFLATED).delete();
+        }
+    }
+
+    /**
+     * Queues all blobs for deletion which aren't referenced by any version.
+     * <p>
+     * This picks up blobs which were released but not deleted before the last shutdown.
+     */
+    public void collectUnreferencedBlobs() {
+        Set<String> referenced;
+        synchronized (this) {
+            referenced = Sets.newHashSet(getReferences().keySet());
+        }
+        File[] dirs = new File(repositoryPath, BLOB_DIR).listFiles();
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            File[] blobs = dir.listFiles();
+            if (blobs != null) {
+                for (File blob : blobs) {
+                    // Skip blobs which are still being written...
+                    String hash = blob.getName().replace(DEFLATED_SUFFIX, "");
+                    if (!hash.startsWith(".") && !referenced.contains(hash)) {
+                        unreferencedBlobs.add(hash);
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized void acquire(ArtifactIndex index) {
+        Map<String, Integer> refs = getReferences();
+        for (IndexEntry entry : index.getEntries()) {
+            refs.merge(entry.getHash(), 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Lazily computes the reference counts by reading the manifests of all stored versions.
+     */
+    private Map<String, Integer> getReferences() {
+        if (references != null) {
+            return references;
+        }
+        Map<String, Integer> refs = Maps.newHashMap();
+        File[] artifacts = new File(repositoryPath).listFiles();
+        if (artifacts != null) {
+            for (File artifactDir : artifacts) {
+                if (artifactDir.isDirectory() && !artifactDir.getName().startsWith(".")) {
+                    countReferences(artifactDir, refs);
+                }
+            }
+        }
+        references = refs;
+        return references;
+    }
+
+    private void countReferences(File artifactDir, Map<String, Integer> refs) {
+        File[] versions = artifactDir.listFiles();
+        if (versions == null) {
+            return;
+        }
+        for (File versionDir : versions) {
+            if (versionDir.getName().startsWith(".")) {
+                // Skip uploads in progress and deleted versions, as their blobs are acquired or released explicitly...
+                continue;
+            }
+            File indexFile = new File(versionDir, ArtifactIndex.INDEX_FILE);
+            if (indexFile.exists()) {
+                try {
+                    ArtifactIndex index = ArtifactIndex.read(indexFile);
+                    if (index.isBlobStorage()) {
+                        for (IndexEntry entry : index.getEntries()) {
+                            refs.merge(entry.getHash(), 1, Integer::sum);
+                        }
+                    }
+                } catch (IOException e) {
+                    Exceptions.handle(LOG, e);
+                }
+            }
+        }
+    }
+}
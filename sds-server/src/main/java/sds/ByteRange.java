@@ -0,0 +1,108 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import io.netty.handler.codec.http.HttpHeaders;
+import sirius.web.http.WebContext;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Represents the range of bytes requested via a <tt>Range</tt> header.
+ * <p>
+ * Only single ranges (<tt>bytes=first-last</tt>, <tt>bytes=first-</tt> and <tt>bytes=-suffixLength</tt>) are
+ * supported, as this is all that is needed to resume a download. Requests for multiple ranges are answered with the
+ * whole content, which is permitted by RFC 7233.
+ */
+class ByteRange {
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    private final long first;
+    private final long last;
+    private final long totalLength;
+
+    private ByteRange(long first, long last, long totalLength) {
+        this.first = first;
+        this.last = last;
+        this.totalLength = totalLength;
+    }
+
+    /**
+     * Determines the range requested for a content of the given length.
+     *
+     * @param ctx         the request to parse the headers of
+     * @param etag        the ETag of the content, which is compared to the <tt>If-Range</tt> header
+     * @param totalLength the length of the content
+     * @return the requested range or <tt>null</tt> if the whole content is to be sent
+     */
+    static ByteRange parse(WebContext ctx, String etag, long totalLength) {
+        String range = ctx.getHeader(HttpHeaders.Names.RANGE);
+        if (range == null) {
+            return null;
+        }
+        String ifRange = ctx.getHeader(HttpHeaders.Names.IF_RANGE);
+        if (ifRange != null && !ifRange.equals(etag)) {
+            // The client has a partial copy of another content...
+            return null;
+        }
+        Matcher m = RANGE.matcher(range.trim());
+        if (!m.matches() || (m.group(1).isEmpty() && m.group(2).isEmpty())) {
+            return null;
+        }
+        try {
+            if (m.group(1).isEmpty()) {
+                long suffixLength = Long.parseLong(m.group(2));
+                return new ByteRange(Math.max(0, totalLength - suffixLength), totalLength - 1, totalLength);
+            }
+            long first = Long.parseLong(m.group(1));
+            if (m.group(2).isEmpty()) {
+                return new ByteRange(first, totalLength - 1, totalLength);
+            }
+            long last = Long.parseLong(m.group(2));
+            if (last < first) {
+                // Syntactically invalid, therefore the header is ignored (RFC 7233, 2.1)...
+                return null;
+            }
+            return new ByteRange(first, Math.min(last, totalLength - 1), totalLength);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Determines if the range can be served at all.
+     *
+     * @return <tt>true</tt> if at least one of the requested bytes exists, <tt>false</tt> otherwise
+     */
+    boolean isSatisfiable() {
+        return first < totalLength && first <= last;
+    }
+
+    long getFirst() {
+        return first;
+    }
+
+    long getLength() {
+        return last - first + 1;
+    }
+
+    /**
+     * Returns the value for the <tt>Content-Range</tt> header.
+     *
+     * @return the range being sent or <tt>bytes *&#47;length</tt> if the range isn't satisfiable
+     */
+    String getContentRange() {
+        if (!isSatisfiable()) {
+            return "bytes */" + totalLength;
+        }
+        return "bytes " + first + "-" + last + "/" + totalLength;
+    }
+}
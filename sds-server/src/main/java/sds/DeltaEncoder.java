@@ -0,0 +1,277 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import com.google.common.collect.Maps;
+import sirius.kernel.commons.Strings;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+/**
+ * Computes the instructions which rebuild a file from an outdated copy, like rsync does.
+ * <p>
+ * The client splits its copy into blocks of a fixed size and sends a weak rolling checksum and a strong checksum (MD5)
+ * for each block. The data of the requested file is then searched for blocks known to the client. Those are sent as
+ * references and only the remaining data is sent as is.
+ * <p>
+ * The signatures sent by the client are expected in the following format (all numbers in network byte order):
+ * <pre>
+ * int blockSize
+ * int numberOfBlocks
+ * numberOfBlocks times: int weakChecksum, byte[16] md5
+ * </pre>
+ * The response is a sequence of instructions. Each starts with a byte determining its type:
+ * <pre>
+ * COPY:    int firstBlock, int numberOfBlocks  - copy the given blocks from the local copy
+ * LITERAL: int length, byte[length]           - append the given data
+ * END:                                        - the file is complete
+ * </pre>
+ */
+class DeltaEncoder {
+
+    static final byte END = 0;
+    static final byte COPY = 1;
+    static final byte LITERAL = 2;
+
+    private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+    private static final int MAX_BLOCKS = 8 * 1024 * 1024;
+    private static final int STRONG_CHECKSUM_LENGTH = 16;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LITERAL_LENGTH = 64 * 1024;
+
+    private final int blockSize;
+    private final byte[] strongChecksums;
+    private final Map<Integer, Integer> firstBlockByChecksum;
+    private final int[] nextBlockWithSameChecksum;
+    private final MessageDigest md5;
+
+    private int pendingCopyStart = -1;
+    private int pendingCopyLength;
+
+    private DeltaEncoder(int blockSize, int numberOfBlocks) {
+        this.blockSize = blockSize;
+        this.strongChecksums = new byte[numberOfBlocks * STRONG_CHECKSUM_LENGTH];
+        this.firstBlockByChecksum = Maps.newHashMapWithExpectedSize(numberOfBlocks);
+        this.nextBlockWithSameChecksum = new int[numberOfBlocks];
+        try {
+            this.md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads the block signatures sent by the client.
+     *
+     * @param input the stream providing the signatures
+     * @return an encoder which computes the instructions to rebuild a file from the client's copy
+     * @throws IOException in case of an IO error or if the signatures are malformed
+     */
+    static DeltaEncoder readSignatures(InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        int blockSize = in.readInt();
+        int numberOfBlocks = in.readInt();
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE || numberOfBlocks < 0 || numberOfBlocks > MAX_BLOCKS) {
+            throw new IOException(Strings.apply("Invalid signatures: %d blocks of %d bytes",
+                                                numberOfBlocks,
+                                                blockSize));
+        }
+        DeltaEncoder result = new DeltaEncoder(blockSize, numberOfBlocks);
+        for (int block = 0; block < numberOfBlocks; block++) {
+            int weakChecksum = in.readInt();
+            in.readFully(result.strongChecksums, block * STRONG_CHECKSUM_LENGTH, STRONG_CHECKSUM_LENGTH);
+            // Blocks sharing the same weak checksum are chained, the most recent one being the head...
+            Integer previous = result.firstBlockByChecksum.put(weakChecksum, block);
+            result.nextBlockWithSameChecksum[block] = previous == null ? -1 : previous;
+        }
+        return result;
+    }
+
+    /**
+     * Computes the weak rolling checksum of the given block, as used by rsync.
+     *
+     * @param data   the buffer containing the block
+     * @param offset the offset of the block within the buffer
+     * @param length the length of the block
+     * @return the checksum of the block
+     */
+    static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int value = data[offset + i] & 0xff;
+            a += value;
+            b += (length - i) * value;
+        }
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+
+    /**
+     * Computes an upper bound for the size of the instructions which rebuild data of the given size.
+     *
+     * @param size the size of the data to encode
+     * @return the max number of bytes written by {@link #encode(InputStream, OutputStream)}
+     */
+    long getMaxEncodedSize(long size) {
+        // Each copied block might end a literal. Also, each refill of the buffer (which consumes at least half of
+        // BUFFER_SIZE) and each literal reaching its max length starts a new one. Apart from the literal data itself,
+        // an instruction takes up to 9 bytes...
+        long instructions = 2 * (size / blockSize + 1) + size / (BUFFER_SIZE / 2) + size / MAX_LITERAL_LENGTH + 3;
+        return size + 9 * instructions + 1;
+    }
+
+    /**
+     * Reads the given data and writes the instructions to rebuild it from the client's copy.
+     *
+     * @param input  the current content of the file
+     * @param output the stream to write the instructions to
+     * @throws IOException in case of an IO error
+     */
+    void encode(InputStream input, OutputStream output) throws IOException {
+        DataOutputStream out = new DataOutputStream(output);
+        byte[] buffer = new byte[Math.max(2 * blockSize, BUFFER_SIZE)];
+        int limit = fill(input, buffer, 0);
+        boolean eof = limit < buffer.length;
+        int pos = 0;
+        int literalStart = 0;
+        boolean rolling = false;
+        int a = 0;
+        int b = 0;
+        while (true) {
+            if (pos + blockSize > limit && !eof) {
+                // Emit the pending literal and move the remaining data to the start of the buffer...
+                writeLiteral(out, buffer, literalStart, pos);
+                System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+                literalStart = 0;
+                limit += fill(input, buffer, limit);
+                eof = limit < buffer.length;
+            }
+            if (pos + blockSize > limit) {
+                break;
+            }
+            if (!rolling) {
+                int checksum = weakChecksum(buffer, pos, blockSize);
+                a = checksum & 0xffff;
+                b = checksum >>> 16;
+                rolling = true;
+            }
+            int block = findBlock((b << 16) | a, buffer, pos);
+            if (block >= 0) {
+                writeLiteral(out, buffer, literalStart, pos);
+                copyBlock(out, block);
+                pos += blockSize;
+                literalStart = pos;
+                rolling = false;
+                continue;
+            }
+            if (pos + blockSize < limit) {
+                int removed = buffer[pos] & 0xff;
+                int added = buffer[pos + blockSize] & 0xff;
+                a = (a - removed + added) & 0xffff;
+                b = (b - blockSize * removed + a) & 0xffff;
+            } else {
+                rolling = false;
+            }
+            pos++;
+            if (pos - literalStart >= MAX_LITERAL_LENGTH) {
+                writeLiteral(out, buffer, literalStart, pos);
+                literalStart = pos;
+            }
+        }
+        writeLiteral(out, buffer, literalStart, limit);
+        flushCopy(out);
+        out.writeByte(END);
+        out.flush();
+    }
+
+    private int fill(InputStream input, byte[] buffer, int offset) throws IOException {
+        int total = 0;
+        while (offset + total < buffer.length) {
+            int read = input.read(buffer, offset + total, buffer.length - offset - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private int findBlock(int weakChecksum, byte[] buffer, int offset) {
+        Integer block = firstBlockByChecksum.get(weakChecksum);
+        if (block == null) {
+            return -1;
+        }
+        md5.update(buffer, offset, blockSize);
+        byte[] strongChecksum = md5.digest();
+        // Prefer the block which continues the current copy instruction...
+        int preferredBlock = pendingCopyStart + pendingCopyLength;
+        if (pendingCopyStart >= 0
+            && preferredBlock < nextBlockWithSameChecksum.length
+            && matches(preferredBlock, strongChecksum)) {
+            return preferredBlock;
+        }
+        int candidate = block;
+        while (candidate >= 0) {
+            if (matches(candidate, strongChecksum)) {
+                return candidate;
+            }
+            candidate = nextBlockWithSameChecksum[candidate];
+        }
+        return -1;
+    }
+
+    private boolean matches(int block, byte[] strongChecksum) {
+        int offset = block * STRONG_CHECKSUM_LENGTH;
+        for (int i = 0; i < STRONG_CHECKSUM_LENGTH; i++) {
+            if (strongChecksums[offset + i] != strongChecksum[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void copyBlock(DataOutputStream out, int block) throws IOException {
+        if (pendingCopyStart >= 0 && pendingCopyStart + pendingCopyLength == block) {
+            pendingCopyLength++;
+            return;
+        }
+        flushCopy(out);
+        pendingCopyStart = block;
+        pendingCopyLength = 1;
+    }
+
+    private void flushCopy(DataOutputStream out) throws IOException {
+        if (pendingCopyStart >= 0) {
+            out.writeByte(COPY);
+            out.writeInt(pendingCopyStart);
+            out.writeInt(pendingCopyLength);
+            pendingCopyStart = -1;
+            pendingCopyLength = 0;
+        }
+    }
+
+    private void writeLiteral(DataOutputStream out, byte[] buffer, int from, int to) throws IOException {
+        if (to <= from) {
+            return;
+        }
+        flushCopy(out);
+        out.writeByte(LITERAL);
+        out.writeInt(to - from);
+        out.write(buffer, from, to - from);
+    }
+}
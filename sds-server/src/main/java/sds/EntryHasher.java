@@ -0,0 +1,139 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import sirius.kernel.async.Tasks;
+import sirius.kernel.commons.Strings;
+import sirius.kernel.di.std.ConfigValue;
+import sirius.kernel.di.std.Part;
+import sirius.kernel.di.std.Register;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Computes the SHA-256 hash of each file of an uploaded artifact.
+ * <p>
+ * The hash is stored in the {@link ArtifactIndex} and reported to clients, which use it to verify their downloads.
+ * Unlike the CRC32 of the ZIP file, it is strong enough to identify a file across versions. As inflating and hashing
+ * is CPU bound, the entries are processed in parallel by the <tt>hashing</tt> executor (see
+ * <tt>async.executor.hashing</tt>), which is shut down along with all other executors once the system stops. Each
+ * upload forks at most as many workers as the executor has threads, as any further worker would only wait in its
+ * queue.
+ * <p>
+ * Each worker reads the data of the entries directly from the positions determined by {@link ArtifactIndex#scan(File)}
+ * using a file handle of its own, so that no state is shared between the threads.
+ */
+@Register(classes = EntryHasher.class)
+public class EntryHasher {
+
+    private static final String EXECUTOR_HASHING = "hashing";
+
+    @ConfigValue("async.executor.hashing.poolSize")
+    private int poolSize;
+
+    @Part
+    private Tasks tasks;
+
+    /**
+     * Computes the hashes of all entries of the given artifact.
+     *
+     * @param zipFile the uploaded artifact
+     * @param index   the index of the given artifact as computed by {@link ArtifactIndex#scan(File)}
+     * @return a new index which contains the hash of each entry
+     * @throws IOException in case of an IO error or if an entry uses an unsupported compression method
+     */
+    public ArtifactIndex computeHashes(File zipFile, ArtifactIndex index) throws IOException {
+        List<IndexEntry> entries = index.getEntries();
+        IndexEntry[] result = new IndexEntry[entries.size()];
+        AtomicInteger nextEntry = new AtomicInteger();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        int workers = Math.min(entries.size(), Math.max(1, poolSize));
+        CountDownLatch completed = new CountDownLatch(workers);
+        for (int i = 0; i < workers; i++) {
+            tasks.executor(EXECUTOR_HASHING).fork(() -> {
+                try {
+                    hashEntries(zipFile, entries, nextEntry, result);
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                    // Let the other workers run out of entries...
+                    nextEntry.set(entries.size());
+                } finally {
+                    completed.countDown();
+                }
+            });
+        }
+        try {
+            completed.await();
+        } catch (InterruptedException e) {
+            nextEntry.set(entries.size());
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while computing hashes", e);
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        return new ArtifactIndex(Arrays.asList(result), index.isBlobStorage());
+    }
+
+    /**
+     * Hashes entries until all entries have been claimed by a worker.
+     */
+    private void hashEntries(File zipFile, List<IndexEntry> entries, AtomicInteger nextEntry, IndexEntry[] result)
+            throws IOException {
+        Inflater inflater = new Inflater(true);
+        try (RandomAccessFile raf = new RandomAccessFile(zipFile, "r")) {
+            int i = nextEntry.getAndIncrement();
+            while (i < entries.size()) {
+                IndexEntry entry = entries.get(i);
+                result[i] = new IndexEntry(entry.getName(),
+                                           entry.getSize(),
+                                           entry.getCrc(),
+                                           entry.getCompressedSize(),
+                                           entry.getMethod(),
+                                           entry.getDataOffset(),
+                                           computeHash(raf, entry, inflater));
+                i = nextEntry.getAndIncrement();
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private String computeHash(RandomAccessFile raf, IndexEntry entry, Inflater inflater) throws IOException {
+        raf.seek(entry.getDataOffset());
+        // The stream must not be closed, as this would close the file...
+        InputStream in = ByteStreams.limit(Channels.newInputStream(raf.getChannel()), entry.getCompressedSize());
+        if (entry.getMethod() == IndexEntry.DEFLATED) {
+            inflater.reset();
+            in = new InflaterInputStream(in, inflater, 8192);
+        } else if (entry.getMethod() != IndexEntry.STORED) {
+            throw new IOException(Strings.apply("Unsupported compression method (%s) for: %s",
+                                                entry.getMethod(),
+                                                entry.getName()));
+        }
+        Hasher hasher = Hashing.sha256().newHasher();
+        ByteStreams.copy(in, Funnels.asOutputStream(hasher));
+        return hasher.hash().toString();
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.HttpChunkedInput;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.stream.ChunkedFile;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import sirius.web.http.MimeHelper;
+import sirius.web.http.WebContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Sends a byte range of a file (usually the data of an entry within an <tt>artifact.zip</tt>) as response.
+ * <p>
+ * The data is handed to netty as {@link DefaultFileRegion}, which permits the kernel to transfer it without copying
+ * it through the heap (sendfile). If the connection is encrypted or the bandwidth is limited, the region is sent in
+ * chunks instead. Data which has to be inflated first is read from a stream, one chunk at a time.
+ * <p>
+ * The <tt>Response</tt> of sirius can only send whole files, therefore the response is written to the channel
+ * directly, the same way <tt>Response.file</tt> does it. This relies on the pipeline set up by the web server of
+ * sirius:
+ * <ul>
+ * <li>The compressor of sirius leaves responses with <tt>Content-Encoding: identity</tt> alone (and removes this
+ * header). A compressor which doesn't do so would announce a compressed body while the region is sent as is.</li>
+ * <li>The {@link ChunkedWriteHandler} is installed on demand in front of the handler named <tt>handler</tt>, as
+ * sirius only installs it once it sends a file itself.</li>
+ * <li>Keep-alive is handled here: the connection is closed once the response has been sent, unless the request
+ * asked to keep it open. The context of sirius isn't marked as committed, therefore an error which occurs after the
+ * response has been started must not be reported via <tt>respondWith()</tt>.</li>
+ * </ul>
+ * These assumptions are verified by <tt>EntryResponseSpec</tt> against the real pipeline.
+ */
+class EntryResponse {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    /**
+     * Contains the name of the handler of sirius, in front of which the {@link ChunkedWriteHandler} is installed.
+     */
+    private static final String SIRIUS_HANDLER = "handler";
+
+    private final WebContext ctx;
+    private final String name;
+    private String contentEncoding;
+    private String etag;
+    private ByteRange range;
+    private int maxAgeSeconds;
+    private boolean sharedCache;
+    private String contentType;
+    private BandwidthLimiter.Throttle throttle;
+
+    /**
+     * Creates a new response for the given request.
+     *
+     * @param ctx  the request to respond to
+     * @param name the name of the file being sent, which is used to determine the content type
+     */
+    EntryResponse(WebContext ctx, String name) {
+        this.ctx = ctx;
+        this.name = name;
+    }
+
+    /**
+     * Specifies the encoding of the data being sent.
+     * <p>
+     * This is used to send the raw deflated data of an entry, which is then inflated by the client.
+     *
+     * @param contentEncoding the encoding to report in the <tt>Content-Encoding</tt> header
+     * @return the response itself for fluent method calls
+     */
+    public EntryResponse contentEncoding(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+        return this;
+    }
+
+    /**
+     * Specifies the ETag of the content being sent.
+     *
+     * @param etag the value for the <tt>ETag</tt> header
+     * @return the response itself for fluent method calls
+     */
+    public EntryResponse etag(String etag) {
+        this.etag = etag;
+        return this;
+    }
+
+    /**
+     * Permits clients (and optionally proxies) to cache the response.
+     *
+     * @param maxAgeSeconds the number of seconds the response may be cached
+     * @param shared        <tt>true</tt> if shared caches may store the response, <tt>false</tt> if only the client may
+     * @return the response itself for fluent method calls
+     */
+    public EntryResponse cachedForSeconds(int maxAgeSeconds, boolean shared) {
+        this.maxAgeSeconds = maxAgeSeconds;
+        this.sharedCache = shared;
+        return this;
+    }
+
+    /**
+     * Specifies the content type instead of guessing it from the name.
+     *
+     * @param contentType the value for the <tt>Content-Type</tt> header
+     * @return the response itself for fluent method calls
+     */
+    public EntryResponse contentType(String contentType) {
+        this.contentType = contentType;
+        return this;
+    }
+
+    /**
+     * Limits the bandwidth used to send the response.
+     *
+     * @param throttle the limits to obey or <tt>null</tt> to send as fast as possible
+     * @return the response itself for fluent method calls
+     */
+    public EntryResponse throttle(BandwidthLimiter.Throttle throttle) {
+        this.throttle = throttle;
+        return this;
+    }
+
+    /**
+     * Marks the response as partial content.
+     *
+     * @param range the range being sent or <tt>null</tt> if the whole content is sent
+     * @return the response itself for fluent method calls
+     */
+    public EntryResponse range(ByteRange range) {
+        this.range = range;
+        return this;
+    }
+
+    /**
+     * Sends the given range of the given file.
+     *
+     * @param file   the file to read the data from
+     * @param offset the position of the first byte to send
+     * @param length the number of bytes to send
+     * @return a future which is completed once the data has been sent
+     * @throws IOException in case the file cannot be opened
+     */
+    public ChannelFuture send(File file, long offset, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ChannelHandlerContext channel = ctx.getCtx();
+            boolean keepAlive = HttpHeaders.isKeepAlive(ctx.getRequest());
+            channel.write(createResponse(length, keepAlive));
+
+            ChannelFuture future;
+            if (throttle == null && channel.pipeline().get(SslHandler.class) == null) {
+                channel.write(new DefaultFileRegion(raf.getChannel(), offset, length));
+                future = channel.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+            } else {
+                installChunkedWriteHandler(channel);
+                future = channel.writeAndFlush(createChunkedInput(new ChunkedFile(raf, offset, length, CHUNK_SIZE)));
+            }
+            if (!keepAlive) {
+                future.addListener(ChannelFutureListener.CLOSE);
+            }
+            return future;
+        } catch (Throwable e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends the given range of the data of the given stream.
+     * <p>
+     * The stream is read by netty, one chunk at a time, once the channel can accept more data (see
+     * {@link StreamChunkedInput}). It is closed once the response has been sent or the transfer has failed.
+     *
+     * @param input  the stream providing the data
+     * @param offset the number of bytes to skip before the first byte to send
+     * @param length the number of bytes to send
+     * @return a future which is completed once the data has been sent
+     * @throws IOException in case of an IO error
+     */
+    public ChannelFuture send(InputStream input, long offset, long length) throws IOException {
+        try {
+            ChannelHandlerContext channel = ctx.getCtx();
+            boolean keepAlive = HttpHeaders.isKeepAlive(ctx.getRequest());
+            channel.write(createResponse(length, keepAlive));
+            installChunkedWriteHandler(channel);
+            ChunkedInput<HttpContent> chunks = new StreamChunkedInput(input, offset, length, CHUNK_SIZE);
+            ChannelFuture future = channel.writeAndFlush(throttle == null ?
+                                                         chunks :
+                                                         new ThrottledChunkedInput(chunks, throttle));
+            if (!keepAlive) {
+                future.addListener(ChannelFutureListener.CLOSE);
+            }
+            return future;
+        } catch (Throwable e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    private void installChunkedWriteHandler(ChannelHandlerContext channel) {
+        if (channel.pipeline().get(ChunkedWriteHandler.class) == null) {
+            channel.pipeline().addBefore(SIRIUS_HANDLER, "chunkedWriter", new ChunkedWriteHandler());
+        }
+    }
+
+    private ChunkedInput<HttpContent> createChunkedInput(ChunkedInput<ByteBuf> input) {
+        HttpChunkedInput result = new HttpChunkedInput(input);
+        return throttle == null ? result : new ThrottledChunkedInput(result, throttle);
+    }
+
+    private HttpResponse createResponse(long length, boolean keepAlive) {
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1,
+                                                         range == null ?
+                                                         HttpResponseStatus.OK :
+                                                         HttpResponseStatus.PARTIAL_CONTENT);
+        HttpHeaders headers = response.headers();
+        HttpHeaders.setContentLength(response, length);
+        headers.set(HttpHeaders.Names.CONTENT_TYPE, contentType == null ? MimeHelper.guessMimeType(name) : contentType);
+        headers.set(HttpHeaders.Names.CONTENT_DISPOSITION, "attachment;filename=\"" + name + "\"");
+        if (maxAgeSeconds > 0) {
+            headers.set(HttpHeaders.Names.CACHE_CONTROL,
+                        (sharedCache ? "public" : "private") + ", max-age=" + maxAgeSeconds);
+        } else {
+            headers.set(HttpHeaders.Names.CACHE_CONTROL, HttpHeaders.Values.NO_CACHE + ", max-age=0");
+            headers.set(HttpHeaders.Names.EXPIRES, "0");
+        }
+        headers.set(HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING);
+        if (contentEncoding != null) {
+            headers.set(HttpHeaders.Names.CONTENT_ENCODING, contentEncoding);
+        } else {
+            // Keeps the compressor from encoding the response, as it cannot compress a file region...
+            headers.set(HttpHeaders.Names.CONTENT_ENCODING, HttpHeaders.Values.IDENTITY);
+            if (etag != null) {
+                headers.set(HttpHeaders.Names.ACCEPT_RANGES, HttpHeaders.Values.BYTES);
+            }
+        }
+        if (etag != null) {
+            headers.set(HttpHeaders.Names.ETAG, etag);
+        }
+        if (range != null) {
+            headers.set(HttpHeaders.Names.CONTENT_RANGE, range.getContentRange());
+        }
+        if (keepAlive) {
+            headers.set(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+        }
+        return response;
+    }
+}
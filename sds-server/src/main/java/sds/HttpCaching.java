@@ -0,0 +1,105 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import sirius.kernel.commons.Strings;
+import sirius.web.http.Response;
+import sirius.web.http.WebContext;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Helps to answer conditional requests for content which never changes.
+ * <p>
+ * Once a version has been uploaded, neither its index nor its files change. Therefore, these are served with a
+ * strong ETag and a long max-age, so that clients and caches in front of SDS can answer repeated requests. Only the
+ * <tt>latest</tt> version remains uncacheable, as it changes with each upload.
+ * <p>
+ * Shared caches (reverse proxies) may only store artifacts which are <tt>publicAccessible</tt>. Everything else is
+ * marked as <tt>private</tt>: a proxy would otherwise serve protected files to anyone replaying a signed URL, long
+ * after its timestamp has expired. (As the credentials are part of the URL and change every second, a proxy couldn't
+ * reuse such a response anyway.)
+ */
+final class HttpCaching {
+
+    /**
+     * Contains the number of seconds an immutable response may be cached.
+     */
+    static final int MAX_AGE_SECONDS = (int) TimeUnit.DAYS.toSeconds(365);
+
+    private HttpCaching() {
+    }
+
+    /**
+     * Determines if the given version name refers to a fixed version, which can be cached.
+     *
+     * @param version the version as given in the URL
+     * @return <tt>true</tt> if the version is numbered, <tt>false</tt> if it is <tt>latest</tt>
+     */
+    static boolean isImmutable(String version) {
+        return !"latest".equals(version);
+    }
+
+    /**
+     * Marks the given response as cacheable for {@link #MAX_AGE_SECONDS}.
+     *
+     * @param response the response to mark
+     * @param shared   <tt>true</tt> if shared caches may store the response, <tt>false</tt> if only the client may
+     * @return the response itself for fluent method calls
+     */
+    static Response cached(Response response, boolean shared) {
+        if (!shared) {
+            response.privateCached();
+        }
+        return response.cachedForSeconds(MAX_AGE_SECONDS);
+    }
+
+    /**
+     * Determines which of the given ETags is listed in the <tt>If-None-Match</tt> header.
+     *
+     * @param ctx   the request to check
+     * @param etags the ETags of the representations of the content
+     * @return the matching ETag or <tt>null</tt> if the content has to be sent
+     */
+    static String findMatchingETag(WebContext ctx, String... etags) {
+        String ifNoneMatch = ctx.getHeader(HttpHeaders.Names.IF_NONE_MATCH);
+        if (Strings.isEmpty(ifNoneMatch)) {
+            return null;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            // A weak comparison is sufficient for If-None-Match (RFC 7232 3.2)...
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            for (String etag : etags) {
+                if ("*".equals(candidate) || candidate.equals(etag)) {
+                    return etag;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Tells the client that its cached copy is still valid.
+     *
+     * @param ctx    the request to respond to
+     * @param etag   the ETag of the cached copy
+     * @param vary   the <tt>Vary</tt> header which is also sent along with the full response, as a 304 has to repeat it
+     * @param shared <tt>true</tt> if shared caches may store the response, <tt>false</tt> if only the client may
+     */
+    static void sendNotModified(WebContext ctx, String etag, String vary, boolean shared) {
+        cached(ctx.respondWith(), shared).addHeader(HttpHeaders.Names.ETAG, etag)
+                                         .addHeader(HttpHeaders.Names.VARY, vary)
+                                         .status(HttpResponseStatus.NOT_MODIFIED);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+/**
+ * Describes a single file within an artifact as recorded in its {@link ArtifactIndex}.
+ * <p>
+ * Next to the values reported to the client (name, size, crc) this also keeps track where the data of the entry
+ * resides within the <tt>artifact.zip</tt> (or its blob, see {@link BlobStore}) so that it can be accessed without
+ * parsing the ZIP again.
+ */
+public class IndexEntry {
+
+    /**
+     * Compression method used for entries which are stored as they are.
+     */
+    public static final int STORED = 0;
+
+    /**
+     * Compression method used for deflated entries.
+     */
+    public static final int DEFLATED = 8;
+
+    private final String name;
+    private final long size;
+    private final long crc;
+    private final long compressedSize;
+    private final int method;
+    private final long dataOffset;
+    private final String hash;
+
+    /**
+     * Creates a new entry.
+     *
+     * @param name           the path of the file within the artifact
+     * @param size           the uncompressed size in bytes
+     * @param crc            the CRC32 of the uncompressed data
+     * @param compressedSize the number of bytes occupied within the ZIP file
+     * @param method         the compression method ({@link #STORED} or {@link #DEFLATED})
+     * @param dataOffset     the position of the first data byte within the ZIP file
+     */
+    public IndexEntry(String name, long size, long crc, long compressedSize, int method, long dataOffset) {
+        this(name, size, crc, compressedSize, method, dataOffset, null);
+    }
+
+    /**
+     * Creates a new entry which also knows the SHA-256 hash of its content.
+     *
+     * @param name           the path of the file within the artifact
+     * @param size           the uncompressed size in bytes
+     * @param crc            the CRC32 of the uncompressed data
+     * @param compressedSize the number of bytes occupied within the ZIP file or blob
+     * @param method         the compression method ({@link #STORED} or {@link #DEFLATED})
+     * @param dataOffset     the position of the first data byte within the ZIP file or blob
+     * @param hash           the hex encoded SHA-256 hash of the uncompressed data or <tt>null</tt> if unknown
+     */
+    public IndexEntry(String name,
+                      long size,
+                      long crc,
+                      long compressedSize,
+                      int method,
+                      long dataOffset,
+                      String hash) {
+        this.name = name;
+        this.size = size;
+        this.crc = crc;
+        this.compressedSize = compressedSize;
+        this.method = method;
+        this.dataOffset = dataOffset;
+        this.hash = hash;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getCrc() {
+        return crc;
+    }
+
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    public int getMethod() {
+        return method;
+    }
+
+    public long getDataOffset() {
+        return dataOffset;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
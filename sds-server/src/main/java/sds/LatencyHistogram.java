@@ -0,0 +1,94 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations in fixed buckets, so that they can be reported as Prometheus histogram.
+ * <p>
+ * Recording a duration is lock free and doesn't allocate, so this can be used on hot paths.
+ */
+class LatencyHistogram {
+
+    /**
+     * Contains the upper bounds of the buckets in seconds. Uploads and large downloads take minutes, therefore the
+     * buckets reach further than usual.
+     */
+    private static final double[] BOUNDS =
+            {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300};
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final String name;
+    private final String help;
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    /**
+     * Creates a new histogram.
+     *
+     * @param name the name of the metric
+     * @param help the description of the metric
+     */
+    LatencyHistogram(String name, String help) {
+        this.name = name;
+        this.help = help;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records the time elapsed since the given start.
+     *
+     * @param startNanos the start as determined by {@link System#nanoTime()}
+     */
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records the given duration.
+     *
+     * @param durationNanos the duration in nanoseconds
+     */
+    void record(long durationNanos) {
+        double seconds = durationNanos / NANOS_PER_SECOND;
+        int bucket = 0;
+        while (bucket < BOUNDS.length && seconds > BOUNDS[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        sumNanos.add(durationNanos);
+    }
+
+    /**
+     * Appends the histogram in the Prometheus text format.
+     *
+     * @param out the buffer to append to
+     */
+    void appendTo(StringBuilder out) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" histogram\n");
+        long count = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            count += buckets[i].sum();
+            out.append(name)
+               .append("_bucket{le=\"")
+               .append(i < BOUNDS.length ? String.valueOf(BOUNDS[i]) : "+Inf")
+               .append("\"} ")
+               .append(count)
+               .append('\n');
+        }
+        out.append(name).append("_sum ").append(sumNanos.sum() / NANOS_PER_SECOND).append('\n');
+        out.append(name).append("_count ").append(count).append('\n');
+    }
+}
@@ -9,35 +9,54 @@
 package sds;
 
 import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
-import com.google.common.hash.Hashing;
+import com.google.common.collect.Maps;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
 import com.google.common.io.Files;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.handler.codec.http.HttpHeaders;
 import io.netty.handler.codec.http.HttpResponseStatus;
 import sirius.kernel.commons.Strings;
-import sirius.kernel.commons.Tuple;
 import sirius.kernel.di.std.ConfigValue;
+import sirius.kernel.di.std.Part;
 import sirius.kernel.di.std.Register;
-import sirius.kernel.extensions.Extension;
-import sirius.kernel.extensions.Extensions;
 import sirius.kernel.health.Exceptions;
 import sirius.kernel.health.Log;
 import sirius.web.http.MimeHelper;
+import sirius.web.http.Response;
 import sirius.web.http.WebContext;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.ReentrantLock;
-import java.util.function.Consumer;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 /**
  * Stores uploaded artifacts in the file system.
@@ -47,60 +66,265 @@ public class Repository {
 
     private static final Log LOG = Log.get("sds");
 
-    private ReentrantLock lock = new ReentrantLock();
+    static final String ARTIFACT_FILE = "artifact.zip";
+    private static final String DEFLATE = "deflate";
+    private static final String STORAGE_BLOBS = "blobs";
+    private static final String STAGING_PREFIX = ".upload-";
+    private static final String DELTA_CONTENT_TYPE = "application/octet-stream";
+    private static final String BUNDLE_CONTENT_TYPE = "application/octet-stream";
+    private static final int BUNDLE_END = 0;
+    private static final int BUNDLE_ENTRY = 1;
+
+    /**
+     * Contains the name of the directory within the repository which contains the temporary files of responses being
+     * sent.
+     */
+    private static final String SPOOL_DIR = ".spool";
+
+    /**
+     * Limits the number of index entries (summed up over all versions) kept in memory.
+     */
+    private static final long MAX_CACHED_INDEX_ENTRIES = 1_000_000;
+
+    private final Map<String, ReadWriteLock> locks = Maps.newConcurrentMap();
+
+    private Cache<String, ArtifactIndex> indexCache = CacheBuilder.newBuilder()
+                                                                  .maximumWeight(MAX_CACHED_INDEX_ENTRIES)
+                                                                  .weigher(Repository::weighIndex)
+                                                                  .build();
+
+    private static int weighIndex(String key, ArtifactIndex index) {
+        return index.size();
+    }
 
     @ConfigValue("sds.repositoryPath")
     private String repositoryPath;
 
-    @ConfigValue("sds.maxArtifacts")
-    private int maxArtifacts;
+    @ConfigValue("sds.storage")
+    private String storage;
+
+    @ConfigValue("sds.bandwidth.maxSpoolSize")
+    private int maxSpoolSizeMB;
+
+    private final AtomicLong spooledBytes = new AtomicLong();
+    private boolean spoolDirectoryCleaned;
+
+    @Part
+    private ZipFilePool zipFilePool;
+
+    @Part
+    private BlobStore blobStore;
+
+    @Part
+    private VersionCatalog catalog;
+
+    @Part
+    private RetentionJanitor janitor;
+
+    @Part
+    private AccessControl accessControl;
+
+    @Part
+    private ServerMetrics metrics;
 
-    public void handleUpload(String artifact, File data) throws IOException {
-        lock.lock();
+    @Part
+    private BandwidthLimiter bandwidthLimiter;
+
+    @Part
+    private EntryHasher entryHasher;
+
+    @Part
+    private AdmissionControl admissionControl;
+
+    /**
+     * Creates a directory which receives the data of an upload.
+     * <p>
+     * The directory resides within the directory of the artifact, so that it can be renamed into the version
+     * directory once the upload is complete. The uploaded ZIP file has to be placed in a file named
+     * <tt>artifact.zip</tt> within this directory.
+     *
+     * @param artifact the artifact being uploaded
+     * @return a new and empty staging directory
+     * @throws IOException in case the directory cannot be created
+     */
+    public File createStagingDirectory(String artifact) throws IOException {
+        File baseDir = getArtifactBaseDir(artifact);
+        File stagingDir = new File(baseDir, STAGING_PREFIX + UUID.randomUUID().toString());
+        if (!stagingDir.mkdirs()) {
+            throw new IOException(Strings.apply("Cannot create a staging directory for %s", artifact));
+        }
+        return stagingDir;
+    }
+
+    /**
+     * Verifies the uploaded ZIP file in the given staging directory and publishes it as new version.
+     * <p>
+     * The staging directory is either renamed into the new version directory or deleted, if the upload is invalid.
+     *
+     * @param artifact   the artifact being uploaded
+     * @param stagingDir the directory created by {@link #createStagingDirectory(String)}
+     * @return the number of the new version
+     * @throws IOException in case of an IO error or if the uploaded file isn't a valid ZIP file
+     */
+    public int publishUpload(String artifact, File stagingDir) throws IOException {
+        File data = new File(stagingDir, ARTIFACT_FILE);
+        ArtifactIndex index = null;
+        boolean published = false;
         try {
-            int version = 1;
-            File baseDir = getArtifactBaseDir(artifact);
-            if (!baseDir.exists()) {
-                baseDir.mkdirs();
-            } else {
-                version = getLatestVersion(artifact) + 1;
+            index = entryHasher.computeHashes(data, ArtifactIndex.scan(data));
+            if (STORAGE_BLOBS.equals(storage)) {
+                index = blobStore.store(data, index);
+                data.delete();
             }
-            File versionDir = new File(baseDir, String.valueOf(version));
-            versionDir.mkdirs();
-            final File artifactFile = new File(versionDir, "artifact.zip");
-            Files.copy(data, artifactFile);
-            while (baseDir.listFiles().length > maxArtifacts) {
-                if (!deleteOldest(baseDir, versionDir)) {
-                    break;
+            index.write(new File(stagingDir, ArtifactIndex.INDEX_FILE));
+            int version = publish(artifact, getArtifactBaseDir(artifact), stagingDir, index);
+            published = true;
+            return version;
+        } finally {
+            if (!published) {
+                if (index != null) {
+                    blobStore.release(index);
                 }
+                deleteDirectory(stagingDir);
             }
+        }
+    }
+
+    /**
+     * Deletes a staging directory of an upload which has been aborted.
+     *
+     * @param stagingDir the directory created by {@link #createStagingDirectory(String)}
+     */
+    public void discardStagingDirectory(File stagingDir) {
+        deleteDirectory(stagingDir);
+    }
+
+    private int publish(String artifact, File baseDir, File stagingDir, ArtifactIndex index) throws IOException {
+        Lock writeLock = getLock(artifact).writeLock();
+        writeLock.lock();
+        try {
+            int previousVersion = findLatestVersion(baseDir);
+            int version = previousVersion + 1;
+            if (previousVersion > 0) {
+                writeDiff(artifact, previousVersion, version, index, stagingDir);
+            }
+            File versionDir = new File(baseDir, String.valueOf(version));
+            if (!stagingDir.renameTo(versionDir)) {
+                throw new IOException(Strings.apply("Cannot create version %d of %s", version, artifact));
+            }
+            indexCache.put(artifact + "/" + version, index);
+            catalog.add(catalog.loadVersion(artifact, versionDir));
+            return version;
         } finally {
-            lock.unlock();
+            writeLock.unlock();
         }
     }
 
-    private boolean deleteOldest(File baseDir, File versionDir) {
+    /**
+     * Precomputes the changes against the previous version, so that clients can fetch these instead of the whole
+     * index. As this is only an optimization, an upload doesn't fail if the diff cannot be computed.
+     */
+    private void writeDiff(String artifact, int previousVersion, int version, ArtifactIndex index, File stagingDir) {
         try {
-            File oldest = null;
-            for (File dir : baseDir.listFiles()) {
-                if (!dir.equals(versionDir) && (oldest == null || dir.lastModified() < oldest.lastModified())) {
-                    oldest = dir;
-                }
+            VersionDiff.compute(previousVersion, getIndex(artifact, String.valueOf(previousVersion)), version, index)
+                       .write(new File(stagingDir, VersionDiff.DIFF_FILE));
+        } catch (IOException e) {
+            Exceptions.handle(LOG, e);
+        }
+    }
+
+    /**
+     * Determines the changes between the two given versions.
+     * <p>
+     * The diff is composed of the precomputed diffs of all versions in between. If these aren't available (e.g.
+     * for versions uploaded before diffs were introduced), it is computed from the indices of both versions.
+     *
+     * @param artifact    the name of the artifact
+     * @param fromVersion the version known to the client
+     * @param toVersion   the requested version
+     * @return the changes which lead from <tt>fromVersion</tt> to <tt>toVersion</tt>
+     * @throws IOException in case of an IO error or if the diff cannot be determined
+     */
+    public VersionDiff getDiff(String artifact, int fromVersion, int toVersion) throws IOException {
+        if (fromVersion > toVersion) {
+            throw new IOException(Strings.apply("Cannot compute a diff from version %d to %d",
+                                                fromVersion,
+                                                toVersion));
+        }
+        if (fromVersion == toVersion) {
+            return new VersionDiff(fromVersion, toVersion, Collections.emptyList(), Collections.emptyList());
+        }
+        List<VersionDiff> diffs = Lists.newArrayList();
+        int current = toVersion;
+        while (current > fromVersion) {
+            ArtifactVersion version = catalog.getVersion(artifact, current);
+            File diffFile = version == null ? null : new File(version.getDirectory(), VersionDiff.DIFF_FILE);
+            if (diffFile == null || !diffFile.exists()) {
+                return VersionDiff.compute(fromVersion,
+                                           getIndex(artifact, String.valueOf(fromVersion)),
+                                           toVersion,
+                                           getIndex(artifact, String.valueOf(toVersion)));
             }
-            if (oldest == null) {
-                return false;
+            VersionDiff diff = VersionDiff.read(diffFile);
+            diffs.add(0, diff);
+            current = diff.getFromVersion();
+        }
+        if (current != fromVersion) {
+            // There is no version fromVersion anymore, so the client cannot be on this version...
+            throw new IOException(Strings.apply("Unknown Version: %d", fromVersion));
+        }
+        VersionDiff result = diffs.get(0);
+        for (int i = 1; i < diffs.size(); i++) {
+            result = result.then(diffs.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the lock of the given artifact.
+     * <p>
+     * The write lock is held while a new version is published.
+     *
+     * @param artifact the name of the artifact
+     * @return the lock which guards the versions of the artifact
+     */
+    ReadWriteLock getLock(String artifact) {
+        return locks.computeIfAbsent(artifact, ignored -> new ReentrantReadWriteLock());
+    }
+
+    List<File> getVersionDirs(File baseDir) {
+        List<File> result = Lists.newArrayList();
+        File[] children = baseDir.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                if (child.isDirectory() && child.getName().matches("\\d+")) {
+                    result.add(child);
+                }
             }
+        }
+        return result;
+    }
 
-            for (File child : oldest.listFiles()) {
+    /**
+     * Drops all cached data of a version which is about to be deleted.
+     *
+     * @param artifact the name of the artifact
+     * @param version  the version being deleted
+     */
+    void evict(String artifact, int version) {
+        indexCache.invalidate(artifact + "/" + version);
+        zipFilePool.invalidate(artifact, version);
+        metrics.forget(artifact, version);
+    }
+
+    private void deleteDirectory(File dir) {
+        File[] children = dir.listFiles();
+        if (children != null) {
+            for (File child : children) {
                 child.delete();
             }
-            oldest.delete();
-
-            return true;
-        } catch (Exception e) {
-            Exceptions.handle(e);
-            return false;
         }
+        dir.delete();
     }
 
     private File getArtifactBaseDir(String artifact) throws IOException {
@@ -108,7 +332,7 @@ public class Repository {
         return new File(repo, artifact);
     }
 
-    private File getRepositoryPath() throws IOException {
+    File getRepositoryPath() throws IOException {
         File repo = new File(repositoryPath);
         if (!repo.exists()) {
             throw new IOException(Strings.apply("Repository base path does not exist: %s", repositoryPath));
@@ -120,95 +344,599 @@ public class Repository {
     }
 
     public int getLatestVersion(String artifact) throws IOException {
-        lock.lock();
-        try {
-            File baseDir = getArtifactBaseDir(artifact);
-            if (!baseDir.exists()) {
+        ArtifactVersion latest = catalog.getLatestVersion(artifact);
+        if (latest == null) {
+            if (!catalog.isKnown(artifact)) {
                 throw new IOException(Strings.apply("Unknown artifact: %s", artifact));
             }
-            int maxVersion = 0;
-            for (File child : baseDir.listFiles()) {
-                if (child.isDirectory() && child.getName().matches("\\d+")) {
-                    int version = Integer.parseInt(child.getName());
-                    maxVersion = Math.max(maxVersion, version);
-                }
-            }
-            if (maxVersion == 0) {
-                throw new IOException(Strings.apply("No version available for: %s", artifact));
-            }
-            return maxVersion;
+            throw new IOException(Strings.apply("No version available for: %s", artifact));
+        }
+        return latest.getVersion();
+    }
+
+    private int findLatestVersion(File baseDir) {
+        int maxVersion = 0;
+        for (File child : getVersionDirs(baseDir)) {
+            maxVersion = Math.max(maxVersion, Integer.parseInt(child.getName()));
+        }
+        return maxVersion;
+    }
+
+    /**
+     * Sends the requested file of the given version.
+     *
+     * @param artifact  the artifact to read
+     * @param version   the version to read
+     * @param path      the path of the file within the artifact
+     * @param immutable <tt>true</tt> if the version was requested by number, so that the response may be cached
+     * @param ctx       the request to respond to
+     * @return the future of the response if it is still being sent or <tt>null</tt> if it has been completed
+     * @throws IOException in case of an IO error
+     */
+    public ChannelFuture sendContent(String artifact, int version, String path, boolean immutable, WebContext ctx)
+            throws IOException {
+        // Prevent the version from being deleted while it is being sent. Note that this has to happen before it
+        // is looked up in the catalog...
+        RetentionJanitor.Pin pin = janitor.pin(artifact, version);
+        long start = System.nanoTime();
+        ChannelFuture future = null;
+        try {
+            future = doSendContent(artifact, version, path, immutable, ctx);
+            return future;
         } finally {
-            lock.unlock();
+            if (future == null) {
+                pin.close();
+                metrics.getContentDuration().recordSince(start);
+            } else {
+                future.addListener((ChannelFutureListener) ignored -> {
+                    pin.close();
+                    metrics.getContentDuration().recordSince(start);
+                });
+            }
         }
     }
 
-    public void sendContent(String artifact, int version, String path, WebContext ctx) throws IOException {
-        File baseDir = getArtifactBaseDir(artifact);
-        if (!baseDir.exists()) {
+    /**
+     * Sends the requested file.
+     *
+     * @return the future of the response if it is sent asynchronously or <tt>null</tt> if it has been completed
+     */
+    private ChannelFuture doSendContent(String artifact, int version, String path, boolean immutable, WebContext ctx)
+            throws IOException {
+        if (!catalog.isKnown(artifact)) {
             ctx.respondWith().error(HttpResponseStatus.NOT_FOUND, Strings.apply("Unknown artifact: %s", artifact));
-            return;
+            return null;
         }
-        File versionDir = new File(baseDir, String.valueOf(version));
-        if (!versionDir.exists()) {
+        ArtifactVersion artifactVersion = catalog.getVersion(artifact, version);
+        if (artifactVersion == null) {
             ctx.respondWith().error(HttpResponseStatus.NOT_FOUND, Strings.apply("Unknown version: %d", version));
-            return;
+            return null;
         }
+        File versionDir = artifactVersion.getDirectory();
         if (path.startsWith("/")) {
             path = path.substring(1);
         }
-        try (ZipFile zf = new ZipFile(new File(versionDir, "artifact.zip"))) {
-            ZipEntry entry = zf.getEntry(path);
-            if (entry == null) {
-                ctx.respondWith().error(HttpResponseStatus.NOT_FOUND, Strings.apply("Unknown file: %s", path));
-                return;
+        ArtifactIndex index = getIndex(artifact, String.valueOf(version));
+        IndexEntry indexEntry = index.getEntry(path);
+        if (indexEntry == null) {
+            ctx.respondWith().error(HttpResponseStatus.NOT_FOUND, Strings.apply("Unknown file: %s", path));
+            return null;
+        }
+        String etag = computeETag(indexEntry);
+        String deflatedETag = etag.substring(0, etag.length() - 1) + "-" + DEFLATE + "\"";
+        // Only public artifacts may be stored by proxies, as these don't check the credentials of a request...
+        boolean sharedCache = accessControl.isPublic(artifact);
+        if (immutable) {
+            String matchingETag = HttpCaching.findMatchingETag(ctx, etag, deflatedETag);
+            if (matchingETag != null) {
+                HttpCaching.sendNotModified(ctx, matchingETag, HttpHeaders.Names.ACCEPT_ENCODING, sharedCache);
+                return null;
+            }
+        }
+        int maxAgeSeconds = immutable ? HttpCaching.MAX_AGE_SECONDS : 0;
+        BandwidthLimiter.Throttle throttle = bandwidthLimiter.getThrottle(ctx, artifact);
+        ByteRange range = ByteRange.parse(ctx, etag, indexEntry.getSize());
+        if (range != null && !range.isSatisfiable()) {
+            ctx.respondWith()
+               .addHeader(HttpHeaders.Names.CONTENT_RANGE, range.getContentRange())
+               .error(HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE,
+                      Strings.apply("Invalid range for: %s", path));
+            return null;
+        }
+        File artifactFile = index.isBlobStorage() ?
+                            blobStore.getBlobFile(indexEntry) :
+                            new File(versionDir, ARTIFACT_FILE);
+        if (indexEntry.getMethod() == IndexEntry.STORED) {
+            // Uncompressed entries can be sent straight from the archive without passing through the heap...
+            long first = range == null ? 0 : range.getFirst();
+            long length = range == null ? indexEntry.getSize() : range.getLength();
+            metrics.addBytesServed(artifact, version, length);
+            return new EntryResponse(ctx, indexEntry.getName()).etag(etag)
+                                                               .cachedForSeconds(maxAgeSeconds, sharedCache)
+                                                               .range(range)
+                                                               .throttle(throttle)
+                                                               .send(artifactFile,
+                                                                     indexEntry.getDataOffset() + first,
+                                                                     length);
+        }
+        if (indexEntry.getMethod() == IndexEntry.DEFLATED && range == null && acceptsDeflate(ctx)) {
+            // The archive already contains the deflated data, so there is no need to inflate it here just to have it
+            // transferred uncompressed. Note that this is the raw deflate stream (without zlib header)...
+            // Being a different representation, this requires an ETag of its own...
+            metrics.addBytesServed(artifact, version, indexEntry.getCompressedSize());
+            return new EntryResponse(ctx, indexEntry.getName()).contentEncoding(DEFLATE)
+                                                               .etag(deflatedETag)
+                                                               .cachedForSeconds(maxAgeSeconds, sharedCache)
+                                                               .throttle(throttle)
+                                                               .send(artifactFile,
+                                                                     indexEntry.getDataOffset(),
+                                                                     indexEntry.getCompressedSize());
+        }
+        if (throttle != null) {
+            return sendInflatedThrottled(ctx,
+                                         artifactVersion,
+                                         index,
+                                         indexEntry,
+                                         etag,
+                                         maxAgeSeconds,
+                                         sharedCache,
+                                         range,
+                                         throttle);
+        }
+        try (InputStream in = openEntry(artifactVersion, index, indexEntry)) {
+            metrics.addBytesServed(artifact,
+                                   version,
+                                   sendInflated(ctx, indexEntry, etag, maxAgeSeconds, sharedCache, range, in));
+        }
+        return null;
+    }
+
+    /**
+     * Sends an inflated entry using non-blocking writes, so that waiting for the bandwidth limit doesn't block the
+     * current thread.
+     * <p>
+     * The entry is inflated by netty, one chunk at a time, while it is being sent. Therefore the first byte is sent
+     * right away and no temporary copy is required.
+     */
+    private ChannelFuture sendInflatedThrottled(WebContext ctx,
+                                                ArtifactVersion artifactVersion,
+                                                ArtifactIndex index,
+                                                IndexEntry entry,
+                                                String etag,
+                                                int maxAgeSeconds,
+                                                boolean sharedCache,
+                                                ByteRange range,
+                                                BandwidthLimiter.Throttle throttle) throws IOException {
+        long first = range == null ? 0 : range.getFirst();
+        long length = range == null ? entry.getSize() : range.getLength();
+        EntryResponse response = new EntryResponse(ctx, entry.getName()).etag(etag)
+                                                                        .cachedForSeconds(maxAgeSeconds, sharedCache)
+                                                                        .range(range)
+                                                                        .throttle(throttle);
+        ChannelFuture future = response.send(openEntry(artifactVersion, index, entry), first, length);
+        metrics.addBytesServed(artifactVersion.getArtifact(), artifactVersion.getVersion(), length);
+        return future;
+    }
+
+    /**
+     * Keeps the given version pinned until the response has been sent.
+     *
+     * @param pin    the pin to release
+     * @param future the future of the response or <tt>null</tt> if it has already been sent
+     */
+    private void releaseWhenSent(RetentionJanitor.Pin pin, ChannelFuture future) {
+        if (future == null) {
+            pin.close();
+        } else {
+            future.addListener((ChannelFutureListener) ignored -> pin.close());
+        }
+    }
+
+    /**
+     * Computes the ETag of the given entry, which is derived from its content.
+     */
+    private String computeETag(IndexEntry entry) {
+        return "\"" + Long.toHexString(entry.getCrc()) + "-" + Long.toHexString(entry.getSize()) + "\"";
+    }
+
+    private long sendInflated(WebContext ctx,
+                              IndexEntry entry,
+                              String etag,
+                              int maxAgeSeconds,
+                              boolean sharedCache,
+                              ByteRange range,
+                              InputStream in) throws IOException {
+        Response response = ctx.respondWith();
+        if (maxAgeSeconds > 0) {
+            HttpCaching.cached(response, sharedCache);
+        } else {
+            response.notCached();
+        }
+        response.download(entry.getName())
+                .addHeader(HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING)
+                .addHeader(HttpHeaders.Names.ETAG, etag)
+                .addHeader(HttpHeaders.Names.ACCEPT_RANGES, HttpHeaders.Values.BYTES);
+        HttpResponseStatus status = HttpResponseStatus.OK;
+        long length = entry.getSize();
+        if (range != null) {
+            // Compressed data cannot be seeked, therefore everything in front of the range is inflated and skipped.
+            // This still saves transferring it again...
+            ByteStreams.skipFully(in, range.getFirst());
+            response.addHeader(HttpHeaders.Names.CONTENT_RANGE, range.getContentRange());
+            status = HttpResponseStatus.PARTIAL_CONTENT;
+            length = range.getLength();
+        }
+        try (OutputStream out = response.outputStream(status, MimeHelper.guessMimeType(entry.getName()))) {
+            return ByteStreams.copy(ByteStreams.limit(in, length), out);
+        }
+    }
+
+    /**
+     * Sends the instructions to rebuild the requested file from an outdated copy of the client.
+     * <p>
+     * The block signatures of the client's copy are expected as body of the request. See {@link DeltaEncoder} for
+     * the format of the request and the response.
+     *
+     * @param artifact the name of the artifact
+     * @param version  the version of the artifact
+     * @param path     the path of the requested file
+     * @param ctx      the request to respond to
+     * @return the future of the response if it is still being sent or <tt>null</tt> if it has been completed
+     * @throws IOException in case of an IO error
+     */
+    public ChannelFuture sendDelta(String artifact, int version, String path, WebContext ctx) throws IOException {
+        RetentionJanitor.Pin pin = janitor.pin(artifact, version);
+        ChannelFuture future = null;
+        try {
+            future = doSendDelta(artifact, version, path, ctx);
+            return future;
+        } finally {
+            releaseWhenSent(pin, future);
+        }
+    }
+
+    private ChannelFuture doSendDelta(String artifact, int version, String path, WebContext ctx) throws IOException {
+        ArtifactVersion artifactVersion = catalog.getVersion(artifact, version);
+        if (artifactVersion == null) {
+            ctx.respondWith().error(HttpResponseStatus.NOT_FOUND, Strings.apply("Unknown version: %d", version));
+            return null;
+        }
+        if (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        ArtifactIndex index = getIndex(artifact, String.valueOf(version));
+        IndexEntry indexEntry = index.getEntry(path);
+        if (indexEntry == null) {
+            ctx.respondWith().error(HttpResponseStatus.NOT_FOUND, Strings.apply("Unknown file: %s", path));
+            return null;
+        }
+        DeltaEncoder encoder;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(ctx.getContentAsFile()))) {
+            encoder = DeltaEncoder.readSignatures(in);
+        } catch (IOException e) {
+            ctx.respondWith().error(HttpResponseStatus.BAD_REQUEST, e.getMessage());
+            return null;
+        }
+        BandwidthLimiter.Throttle throttle = bandwidthLimiter.getThrottle(ctx, artifact);
+        if (throttle != null) {
+            return sendDeltaThrottled(artifactVersion, index, indexEntry, encoder, throttle, ctx);
+        }
+        try (InputStream in = openEntry(artifactVersion, index, indexEntry);
+             CountingOutputStream out = new CountingOutputStream(ctx.respondWith()
+                                                                    .notCached()
+                                                                    .outputStream(HttpResponseStatus.OK,
+                                                                                  DELTA_CONTENT_TYPE))) {
+            encoder.encode(in, out);
+            metrics.addBytesServed(artifact, version, out.getCount());
+        }
+        return null;
+    }
+
+    /**
+     * Encodes the delta into a temporary file, which is then sent using non-blocking writes.
+     * <p>
+     * The encoder has to consume the whole entry in one go, therefore it cannot wait for the bandwidth limit without
+     * blocking the current thread. The temporary files reside in the repository (see {@link #SPOOL_DIR}) and their
+     * total size is limited by <tt>sds.bandwidth.maxSpoolSize</tt>. A request which would exceed this limit is asked
+     * to retry later.
+     */
+    private ChannelFuture sendDeltaThrottled(ArtifactVersion artifactVersion,
+                                             ArtifactIndex index,
+                                             IndexEntry indexEntry,
+                                             DeltaEncoder encoder,
+                                             BandwidthLimiter.Throttle throttle,
+                                             WebContext ctx) throws IOException {
+        long maxSize = encoder.getMaxEncodedSize(indexEntry.getSize());
+        if (spooledBytes.addAndGet(maxSize) > maxSpoolSizeMB * 1024L * 1024L) {
+            spooledBytes.addAndGet(-maxSize);
+            admissionControl.reject(ctx);
+            return null;
+        }
+        File spool = null;
+        ChannelFuture future = null;
+        try {
+            spool = new File(getSpoolDirectory(), UUID.randomUUID().toString());
+            try (InputStream in = openEntry(artifactVersion, index, indexEntry);
+                 OutputStream out = new BufferedOutputStream(new FileOutputStream(spool))) {
+                encoder.encode(in, out);
+            }
+            metrics.addBytesServed(artifactVersion.getArtifact(), artifactVersion.getVersion(), spool.length());
+            future = new EntryResponse(ctx, indexEntry.getName()).contentType(DELTA_CONTENT_TYPE)
+                                                                 .throttle(throttle)
+                                                                 .send(spool, 0, spool.length());
+            return future;
+        } finally {
+            File spoolFile = spool;
+            if (future == null) {
+                releaseSpool(spoolFile, maxSize);
+            } else {
+                future.addListener((ChannelFutureListener) ignored -> releaseSpool(spoolFile, maxSize));
             }
-            try (OutputStream out = ctx.respondWith()
-                                       .notCached()
-                                       .download(entry.getName())
-                                       .outputStream(HttpResponseStatus.OK, MimeHelper.guessMimeType(path))) {
-                try (InputStream in = zf.getInputStream(entry)) {
-                    ByteStreams.copy(in, out);
+        }
+    }
+
+    /**
+     * Returns the directory which contains the temporary files of responses being sent.
+     * <p>
+     * Files left over by a previous run are deleted once the directory is used for the first time.
+     */
+    private synchronized File getSpoolDirectory() throws IOException {
+        File dir = new File(getRepositoryPath(), SPOOL_DIR);
+        if (!spoolDirectoryCleaned) {
+            File[] leftovers = dir.listFiles();
+            if (leftovers != null) {
+                for (File leftover : leftovers) {
+                    deleteTempFile(leftover);
                 }
             }
+            spoolDirectoryCleaned = true;
+        }
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException(Strings.apply("Cannot create directory: %s", dir.getAbsolutePath()));
         }
+        return dir;
     }
 
-    public List<String> getArtifacts() throws IOException {
-        List<String> result = Lists.newArrayList();
-        for (Extension e : Extensions.getExtensions("artifacts")) {
-            result.add(e.getId());
+    private void releaseSpool(File spool, long reservedBytes) {
+        if (spool != null && spool.exists()) {
+            deleteTempFile(spool);
         }
+        spooledBytes.addAndGet(-reservedBytes);
+    }
 
-        return result;
+    private void deleteTempFile(File file) {
+        if (!file.delete()) {
+            LOG.WARN(Strings.apply("Cannot delete temporary file: %s", file.getAbsolutePath()));
+        }
     }
 
-    public List<Tuple<String, File>> getVersions(String artifact) throws IOException {
-        File baseDir = getArtifactBaseDir(artifact);
-        if (!baseDir.exists()) {
-            throw new IOException(Strings.apply("Unknown Artifact: %s", artifact));
+    /**
+     * Sends several files of a version in a single response.
+     * <p>
+     * The body of the request is expected to contain the paths of the requested files, one per line. The response
+     * contains the files in the requested order. Each file starts with a marker byte (1), followed by its path (as
+     * written by {@link DataOutputStream#writeUTF(String)}), its size and its CRC (both as long) and then its
+     * uncompressed content. The response ends with a marker byte of 0.
+     *
+     * @param artifact the name of the artifact
+     * @param version  the version of the artifact
+     * @param ctx      the request to respond to
+     * @return the future of the response if it is still being sent or <tt>null</tt> if it has been completed
+     * @throws IOException in case of an IO error
+     */
+    public ChannelFuture sendBundle(String artifact, int version, WebContext ctx) throws IOException {
+        RetentionJanitor.Pin pin = janitor.pin(artifact, version);
+        ChannelFuture future = null;
+        try {
+            future = doSendBundle(artifact, version, ctx);
+            return future;
+        } finally {
+            releaseWhenSent(pin, future);
         }
-        List<Tuple<String, File>> result = Lists.newArrayList();
-        for (File version : getArtifactBaseDir(artifact).listFiles()) {
-            if (version.isDirectory() && !version.getName().startsWith(".")) {
-                result.add(Tuple.create(version.getName(), new File(version, "artifact.zip")));
+    }
+
+    private ChannelFuture doSendBundle(String artifact, int version, WebContext ctx) throws IOException {
+        ArtifactVersion artifactVersion = catalog.getVersion(artifact, version);
+        if (artifactVersion == null) {
+            ctx.respondWith().error(HttpResponseStatus.NOT_FOUND, Strings.apply("Unknown version: %d", version));
+            return null;
+        }
+        ArtifactIndex index = getIndex(artifact, String.valueOf(version));
+        List<IndexEntry> entries = Lists.newArrayList();
+        for (String path : Files.readLines(ctx.getContentAsFile(), Charsets.UTF_8)) {
+            if (Strings.isFilled(path)) {
+                IndexEntry entry = index.getEntry(path.startsWith("/") ? path.substring(1) : path);
+                if (entry == null) {
+                    ctx.respondWith().error(HttpResponseStatus.NOT_FOUND, Strings.apply("Unknown file: %s", path));
+                    return null;
+                }
+                entries.add(entry);
             }
         }
-        Collections.sort(result, new Comparator<Tuple<String, File>>() {
+        BandwidthLimiter.Throttle throttle = bandwidthLimiter.getThrottle(ctx, artifact);
+        if (throttle != null) {
+            return sendBundleThrottled(artifactVersion, index, entries, throttle, ctx);
+        }
+        CountingOutputStream out = new CountingOutputStream(ctx.respondWith()
+                                                               .notCached()
+                                                               .outputStream(HttpResponseStatus.OK,
+                                                                             BUNDLE_CONTENT_TYPE));
+        try {
+            writeBundle(artifactVersion, index, entries, out);
+        } finally {
+            out.close();
+            metrics.addBytesServed(artifact, version, out.getCount());
+        }
+        return null;
+    }
+
+    /**
+     * Sends a bundle using non-blocking writes, so that waiting for the bandwidth limit doesn't block the current
+     * thread.
+     * <p>
+     * The bundle is assembled lazily from the headers and the entries while it is being sent, so that only one entry
+     * is open at a time. As the headers are computed in advance, the length of the response is known up front.
+     */
+    private ChannelFuture sendBundleThrottled(ArtifactVersion artifactVersion,
+                                              ArtifactIndex index,
+                                              List<IndexEntry> entries,
+                                              BandwidthLimiter.Throttle throttle,
+                                              WebContext ctx) throws IOException {
+        List<byte[]> headers = Lists.newArrayListWithCapacity(entries.size());
+        long length = 1;
+        for (IndexEntry entry : entries) {
+            byte[] header = createBundleHeader(entry);
+            headers.add(header);
+            length += header.length + entry.getSize();
+        }
+        Iterator<InputStream> parts = new AbstractIterator<InputStream>() {
+            private int position;
+
             @Override
-            public int compare(Tuple<String, File> o1, Tuple<String, File> o2) {
+            protected InputStream computeNext() {
+                // Each entry consists of two parts (header and data), followed by the end marker...
+                int current = position++;
+                if (current > 2 * entries.size()) {
+                    return endOfData();
+                }
+                if (current == 2 * entries.size()) {
+                    return new ByteArrayInputStream(new byte[]{BUNDLE_END});
+                }
+                if (current % 2 == 0) {
+                    return new ByteArrayInputStream(headers.get(current / 2));
+                }
                 try {
-                    return Integer.parseInt(o2.getFirst()) - Integer.parseInt(o1.getFirst());
-                } catch (Throwable e) {
-                    Exceptions.ignore(e);
-                    return 0;
+                    return openEntry(artifactVersion, index, entries.get(current / 2));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
             }
-        });
+        };
+        InputStream bundle = new SequenceInputStream(Iterators.asEnumeration(parts));
+        ChannelFuture future = new EntryResponse(ctx, "bundle").contentType(BUNDLE_CONTENT_TYPE)
+                                                               .throttle(throttle)
+                                                               .send(bundle, 0, length);
+        metrics.addBytesServed(artifactVersion.getArtifact(), artifactVersion.getVersion(), length);
+        return future;
+    }
 
-        return result;
+    private byte[] createBundleHeader(IndexEntry entry) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(buffer)) {
+            out.writeByte(BUNDLE_ENTRY);
+            out.writeUTF(entry.getName());
+            out.writeLong(entry.getSize());
+            out.writeLong(entry.getCrc());
+        }
+        return buffer.toByteArray();
     }
 
-    public void generateIndex(String artifact, String version, Consumer<ZipEntry> indexCollector) throws IOException {
+    private void writeBundle(ArtifactVersion artifactVersion,
+                             ArtifactIndex index,
+                             List<IndexEntry> entries,
+                             OutputStream output) throws IOException {
+        DataOutputStream out = new DataOutputStream(output);
+        for (IndexEntry entry : entries) {
+            out.write(createBundleHeader(entry));
+            try (InputStream in = openEntry(artifactVersion, index, entry)) {
+                if (ByteStreams.copy(in, out) != entry.getSize()) {
+                    // The framing is broken by now, so all we can do is to abort the response...
+                    throw new IOException(Strings.apply("Unexpected size of %s", entry.getName()));
+                }
+            }
+        }
+        out.writeByte(BUNDLE_END);
+        out.flush();
+    }
+
+    private InputStream openEntry(ArtifactVersion artifactVersion, ArtifactIndex index, IndexEntry indexEntry)
+            throws IOException {
+        if (index.isBlobStorage()) {
+            return blobStore.openStream(indexEntry);
+        }
+        ZipFilePool.Lease lease = zipFilePool.acquire(artifactVersion.getArtifact(),
+                                                      artifactVersion.getVersion(),
+                                                      new File(artifactVersion.getDirectory(), ARTIFACT_FILE));
+        try {
+            ZipEntry entry = lease.getZipFile().getEntry(indexEntry.getName());
+            if (entry == null) {
+                throw new IOException(Strings.apply("Unknown file: %s", indexEntry.getName()));
+            }
+            return new FilterInputStream(lease.getZipFile().getInputStream(entry)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        lease.close();
+                    }
+                }
+            };
+        } catch (IOException | RuntimeException e) {
+            lease.close();
+            throw e;
+        }
+    }
+
+    private boolean acceptsDeflate(WebContext ctx) {
+        String acceptEncoding = ctx.getHeader(HttpHeaders.Names.ACCEPT_ENCODING);
+        if (Strings.isEmpty(acceptEncoding)) {
+            return false;
+        }
+        for (String encoding : acceptEncoding.split(",")) {
+            String[] parts = encoding.trim().split(";");
+            if (DEFLATE.equalsIgnoreCase(parts[0].trim())) {
+                return parts.length == 1 || !parts[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    public List<String> getArtifacts() throws IOException {
+        return accessControl.getArtifacts();
+    }
+
+    public List<ArtifactVersion> getVersions(String artifact) throws IOException {
+        if (!catalog.isKnown(artifact)) {
+            throw new IOException(Strings.apply("Unknown Artifact: %s", artifact));
+        }
+        return catalog.getVersions(artifact);
+    }
+
+    public ArtifactIndex getIndex(String artifact, String version) throws IOException {
+        try {
+            return indexCache.get(artifact + "/" + version, () -> loadIndex(artifact, version));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw Exceptions.handle(LOG, e.getCause());
+        }
+    }
+
+    /**
+     * Returns the file containing the index of the given version in the compact binary format.
+     * <p>
+     * The file is created on first use and then kept next to the index of the version.
+     *
+     * @param artifact the artifact to read
+     * @param version  the version to read
+     * @return a file in the format described by {@link BinaryIndex}
+     * @throws IOException in case of an IO error or if the version doesn't exist
+     */
+    public File getBinaryIndex(String artifact, int version) throws IOException {
+        ArtifactVersion artifactVersion = catalog.getVersion(artifact, version);
+        if (artifactVersion == null) {
+            throw new IOException(Strings.apply("Unknown Version: %s", version));
+        }
+        File binaryIndexFile = new File(artifactVersion.getDirectory(), BinaryIndex.BINARY_INDEX_FILE);
+        if (!binaryIndexFile.exists()) {
+            BinaryIndex.write(binaryIndexFile, version, getIndex(artifact, String.valueOf(version)));
+        }
+        return binaryIndexFile;
+    }
+
+    private ArtifactIndex loadIndex(String artifact, String version) throws IOException {
         File baseDir = getArtifactBaseDir(artifact);
         if (!baseDir.exists()) {
             throw new IOException(Strings.apply("Unknown Artifact: %s", artifact));
@@ -217,15 +945,19 @@ public class Repository {
         if (!versionDir.exists()) {
             throw new IOException(Strings.apply("Unknown Version: %s", version));
         }
-        try (ZipFile zf = new ZipFile(new File(versionDir, "artifact.zip"))) {
-            Enumeration<? extends ZipEntry> ze = zf.entries();
-            while (ze.hasMoreElements()) {
-                ZipEntry entry = ze.nextElement();
-                if (!entry.isDirectory()) {
-                    indexCollector.accept(entry);
-                }
-            }
+        File indexFile = new File(versionDir, ArtifactIndex.INDEX_FILE);
+        if (indexFile.exists()) {
+            return ArtifactIndex.read(indexFile);
         }
+
+        // Versions uploaded before index files were introduced are scanned once and then get their index file...
+        ArtifactIndex index = ArtifactIndex.scan(new File(versionDir, ARTIFACT_FILE));
+        try {
+            index.write(indexFile);
+        } catch (IOException e) {
+            Exceptions.handle(LOG, e);
+        }
+        return index;
     }
 
     public int convertVersion(String artifact, String version) throws IOException {
@@ -236,62 +968,11 @@ public class Repository {
         }
     }
 
-    private static final long ONE_DAY = TimeUnit.MILLISECONDS.convert(1, TimeUnit.DAYS);
-
     public boolean canAccess(String artifact, String user, String hash, int timestamp) {
-        return canAccess(artifact, user, hash, timestamp, true);
-    }
-
-    @SuppressWarnings("unchecked")
-    public boolean canAccess(String artifact, String user, String hash, int timestamp, boolean acceptPublic) {
-        try {
-            Extension artExt = Extensions.getExtension("artifacts", artifact);
-            if (artExt.isDefault()) {
-                LOG.WARN("Rejected access to unknown artifact: " + artifact);
-                return false;
-            }
-            if (artExt.get("publicAccessible").asBoolean(false)) {
-                if (acceptPublic) {
-                    return acceptPublic;
-                }
-            }
-            if (timestamp < TimeUnit.SECONDS.convert(System.currentTimeMillis() - ONE_DAY, TimeUnit.MILLISECONDS)) {
-                LOG.WARN("Rejected access to artifact: " + artifact + " - timestamp is outdated!");
-                return false;
-            }
-            Extension userExt = Extensions.getExtension("users", user);
-            if (userExt.isDefault()) {
-                LOG.WARN("Rejected access by unknown user: " + user);
-                return false;
-            }
-            List<String> arts = (List<String>) userExt.get("artifacts").get();
-            if (arts == null || (!arts.contains(artifact) && !arts.contains("*"))) {
-                LOG.WARN("Rejected access by user: " + user + ". No access to artifact: " + artifact);
-                return false;
-            }
-            String key = userExt.get("key").asString();
-            if (Strings.isEmpty(key)) {
-                LOG.WARN("Rejected access by user: " + user + ". No key was given!");
-                return false;
-            }
-            String input = user + timestamp + key;
-            if (!Hashing.md5().newHasher().putString(input, Charsets.UTF_8).hash().toString().equals(hash)) {
-                LOG.WARN("Rejected access by user: " + user + ". Invalid hash!");
-                return false;
-            }
-
-            return true;
-        } catch (Exception e) {
-            Exceptions.handle(e);
-            return false;
-        }
+        return accessControl.canAccess(artifact, user, hash, timestamp, true);
     }
 
     public boolean canWriteAccess(String artifact, String user, String hash, int timestamp) {
-        if (!canAccess(artifact, user, hash, timestamp, false)) {
-            return false;
-        }
-
-        return Extensions.getExtension("users", user).get("writeAccess").asBoolean(false);
+        return accessControl.canWriteAccess(artifact, user, hash, timestamp);
     }
 }
@@ -0,0 +1,245 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import sirius.kernel.async.Tasks;
+import sirius.kernel.commons.Strings;
+import sirius.kernel.di.std.ConfigValue;
+import sirius.kernel.di.std.Part;
+import sirius.kernel.di.std.Register;
+import sirius.kernel.health.Exceptions;
+import sirius.kernel.health.Log;
+import sirius.kernel.timer.EveryMinute;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Deletes old versions of artifacts in the background, so that uploads don't have to wait for it.
+ * <p>
+ * Deleting a version is a two step process: First the version is <b>retired</b>, which removes it from the
+ * {@link VersionCatalog} so that no new download can start using it. Once all downloads which are still in progress
+ * have completed (see {@link #pin(String, int)}), its directory is renamed and then deleted. Each run only deletes a
+ * limited number of files, so that the deletion of large versions is spread over several runs. Blobs which are no
+ * longer referenced by any version (see {@link BlobStore}) are deleted first and count towards the same limit.
+ */
+@Register(classes = {RetentionJanitor.class, EveryMinute.class})
+public class RetentionJanitor implements EveryMinute {
+
+    private static final Log LOG = Log.get("sds");
+
+    private static final String DELETED_PREFIX = ".deleted-";
+
+    @ConfigValue("sds.maxArtifacts")
+    private int maxArtifacts;
+
+    @ConfigValue("sds.retention.interval")
+    private int intervalMinutes;
+
+    @ConfigValue("sds.retention.maxDeletionsPerRun")
+    private int maxDeletionsPerRun;
+
+    @Part
+    private Repository repository;
+
+    @Part
+    private VersionCatalog catalog;
+
+    @Part
+    private BlobStore blobStore;
+
+    @Part
+    private Tasks tasks;
+
+    private final Map<String, Integer> pins = Maps.newConcurrentMap();
+    private final Map<String, ArtifactVersion> retiredVersions = Maps.newConcurrentMap();
+    private final Queue<File> deletedDirectories = Queues.newConcurrentLinkedQueue();
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile long lastRun;
+    private volatile boolean leftoversCollected;
+
+    /**
+     * Marks a version as being in use until the returned pin is closed.
+     * <p>
+     * A version which is pinned is not deleted, even if it has already been retired. Note that the version has to
+     * be looked up in the {@link VersionCatalog} <b>after</b> it has been pinned, as it might have been retired in
+     * the meantime.
+     */
+    public class Pin implements AutoCloseable {
+
+        private final String key;
+        private boolean released;
+
+        private Pin(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!released) {
+                released = true;
+                pins.computeIfPresent(key, (ignored, count) -> count <= 1 ? null : count - 1);
+            }
+        }
+    }
+
+    /**
+     * Prevents the given version from being deleted until the returned pin is closed.
+     *
+     * @param artifact the name of the artifact
+     * @param version  the version being used
+     * @return a pin which has to be closed once the version is no longer used
+     */
+    public Pin pin(String artifact, int version) {
+        String key = artifact + "/" + version;
+        pins.merge(key, 1, Integer::sum);
+        return new Pin(key);
+    }
+
+    /**
+     * Determines if the given version has been retired and is about to be deleted.
+     *
+     * @param artifact the name of the artifact
+     * @param version  the version to check
+     * @return <tt>true</tt> if the version must no longer be used, <tt>false</tt> otherwise
+     */
+    public boolean isRetired(String artifact, int version) {
+        return retiredVersions.containsKey(artifact + "/" + version);
+    }
+
+    @Override
+    public void runTimer() throws Exception {
+        if (System.currentTimeMillis() - lastRun < TimeUnit.MINUTES.toMillis(Math.max(1, intervalMinutes))) {
+            return;
+        }
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        lastRun = System.currentTimeMillis();
+        tasks.executor("retention").fork(() -> {
+            try {
+                runRetention();
+            } catch (Throwable e) {
+                Exceptions.handle(LOG, e);
+            } finally {
+                running.set(false);
+            }
+        });
+    }
+
+    /**
+     * Retires all versions exceeding the configured limit and deletes retired versions which are no longer in use.
+     */
+    void runRetention() {
+        if (!leftoversCollected) {
+            collectLeftovers();
+            leftoversCollected = true;
+        }
+        for (String artifact : catalog.getArtifacts()) {
+            List<ArtifactVersion> versions = catalog.getVersions(artifact);
+            for (int i = Math.max(1, maxArtifacts); i < versions.size(); i++) {
+                retire(versions.get(i));
+            }
+        }
+        for (ArtifactVersion version : retiredVersions.values()) {
+            if (!pins.containsKey(version.toString())) {
+                unlink(version);
+            }
+        }
+        int budget = Math.max(1, maxDeletionsPerRun);
+        budget -= blobStore.deleteUnreferencedBlobs(budget);
+        deleteDirectories(budget);
+    }
+
+    private void retire(ArtifactVersion version) {
+        retiredVersions.put(version.toString(), version);
+        catalog.remove(version.getArtifact(), version.getVersion());
+        LOG.FINE(Strings.apply("Retired version %s", version));
+    }
+
+    /**
+     * Moves the directory of an unused version out of the way so that it is no longer visible to the repository and
+     * releases all resources held for it.
+     */
+    private void unlink(ArtifactVersion version) {
+        repository.evict(version.getArtifact(), version.getVersion());
+        File versionDir = version.getDirectory();
+        File deletedDir = new File(versionDir.getParentFile(), DELETED_PREFIX + UUID.randomUUID().toString());
+        if (versionDir.exists() && !versionDir.renameTo(deletedDir)) {
+            LOG.WARN(Strings.apply("Cannot delete version %s - the directory cannot be renamed", version));
+            return;
+        }
+        retiredVersions.remove(version.toString());
+        if (deletedDir.exists()) {
+            releaseBlobs(deletedDir);
+            deletedDirectories.add(deletedDir);
+        }
+    }
+
+    private void releaseBlobs(File deletedDir) {
+        File indexFile = new File(deletedDir, ArtifactIndex.INDEX_FILE);
+        if (indexFile.exists()) {
+            try {
+                blobStore.release(ArtifactIndex.read(indexFile));
+            } catch (IOException e) {
+                Exceptions.handle(LOG, e);
+            }
+        }
+    }
+
+    private void deleteDirectories(int budget) {
+        while (budget > 0 && !deletedDirectories.isEmpty()) {
+            File dir = deletedDirectories.peek();
+            File[] children = dir.listFiles();
+            if (children != null) {
+                for (int i = 0; i < children.length && budget > 0; i++, budget--) {
+                    children[i].delete();
+                }
+            }
+            if (budget > 0) {
+                dir.delete();
+                deletedDirectories.remove();
+                budget--;
+            }
+        }
+    }
+
+    /**
+     * Picks up directories and blobs which have been released but not deleted before the last shutdown.
+     */
+    private void collectLeftovers() {
+        blobStore.collectUnreferencedBlobs();
+        try {
+            File[] artifactDirs = repository.getRepositoryPath().listFiles();
+            if (artifactDirs == null) {
+                return;
+            }
+            for (File artifactDir : artifactDirs) {
+                File[] children = artifactDir.listFiles();
+                if (children != null) {
+                    for (File child : children) {
+                        if (child.isDirectory() && child.getName().startsWith(DELETED_PREFIX)) {
+                            deletedDirectories.add(child);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Exceptions.handle(LOG, e);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import com.google.common.collect.Maps;
+import sirius.kernel.di.std.Register;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records timings and counters of the hot paths of the server.
+ * <p>
+ * The metrics are reported in the Prometheus text format via <tt>/metrics</tt>. Besides the latencies, this reports
+ * the saturation of the <tt>content</tt> executor, so that an overload becomes visible before requests are dropped.
+ */
+@Register(classes = ServerMetrics.class)
+public class ServerMetrics {
+
+    /**
+     * Contains the content type of the Prometheus text format.
+     */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final LatencyHistogram indexDuration =
+            new LatencyHistogram("sds_index_duration_seconds", "Time needed to answer an index request");
+    private final LatencyHistogram contentDuration =
+            new LatencyHistogram("sds_content_duration_seconds", "Time needed to send a file, including the transfer");
+    private final LatencyHistogram authDuration =
+            new LatencyHistogram("sds_auth_duration_seconds", "Time needed to check the permissions of a request");
+    private final LatencyHistogram uploadDuration =
+            new LatencyHistogram("sds_upload_duration_seconds", "Time needed to receive and publish an upload");
+
+    private final Map<String, LongAdder> bytesServed = Maps.newConcurrentMap();
+
+    private final AtomicInteger queuedContentTasks = new AtomicInteger();
+    private final AtomicInteger activeContentTasks = new AtomicInteger();
+    private final LongAdder completedContentTasks = new LongAdder();
+    private final LongAdder rejectedContentTasks = new LongAdder();
+    private final LongAdder abandonedContentTasks = new LongAdder();
+
+    LatencyHistogram getIndexDuration() {
+        return indexDuration;
+    }
+
+    LatencyHistogram getContentDuration() {
+        return contentDuration;
+    }
+
+    LatencyHistogram getAuthDuration() {
+        return authDuration;
+    }
+
+    LatencyHistogram getUploadDuration() {
+        return uploadDuration;
+    }
+
+    /**
+     * Counts the bytes sent for the given version.
+     *
+     * @param artifact the name of the artifact
+     * @param version  the version which was sent
+     * @param bytes    the number of bytes sent
+     */
+    public void addBytesServed(String artifact, int version, long bytes) {
+        bytesServed.computeIfAbsent(artifact + "\t" + version, ignored -> new LongAdder()).add(bytes);
+    }
+
+    /**
+     * Removes the counters of a version which has been deleted.
+     *
+     * @param artifact the name of the artifact
+     * @param version  the deleted version
+     */
+    public void forget(String artifact, int version) {
+        bytesServed.remove(artifact + "\t" + version);
+    }
+
+    /**
+     * Reports that a task has been submitted to the <tt>content</tt> executor.
+     */
+    void contentTaskQueued() {
+        queuedContentTasks.incrementAndGet();
+    }
+
+    /**
+     * Reports that a transfer has been rejected as the queues are full.
+     */
+    void contentTaskRejected() {
+        rejectedContentTasks.increment();
+    }
+
+    /**
+     * Reports that a queued task has been dropped by the <tt>content</tt> executor due to overload.
+     */
+    void contentTaskDropped() {
+        queuedContentTasks.decrementAndGet();
+        rejectedContentTasks.increment();
+    }
+
+    /**
+     * Reports that a queued transfer has been dropped as its client has closed the connection.
+     */
+    void contentTaskAbandoned() {
+        queuedContentTasks.decrementAndGet();
+        abandonedContentTasks.increment();
+    }
+
+    /**
+     * Reports that a task of the <tt>content</tt> executor has been started.
+     */
+    void contentTaskStarted() {
+        queuedContentTasks.decrementAndGet();
+        activeContentTasks.incrementAndGet();
+    }
+
+    /**
+     * Reports that a task of the <tt>content</tt> executor has been completed.
+     */
+    void contentTaskCompleted() {
+        activeContentTasks.decrementAndGet();
+        completedContentTasks.increment();
+    }
+
+    /**
+     * Renders all metrics in the Prometheus text format.
+     *
+     * @return the metrics as expected by a Prometheus scraper
+     */
+    public String toPrometheusFormat() {
+        StringBuilder out = new StringBuilder();
+        indexDuration.appendTo(out);
+        contentDuration.appendTo(out);
+        authDuration.appendTo(out);
+        uploadDuration.appendTo(out);
+
+        out.append("# HELP sds_bytes_served_total Number of bytes sent per artifact and version\n");
+        out.append("# TYPE sds_bytes_served_total counter\n");
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(bytesServed).entrySet()) {
+            String[] key = entry.getKey().split("\t");
+            out.append("sds_bytes_served_total{artifact=\"")
+               .append(escapeLabel(key[0]))
+               .append("\",version=\"")
+               .append(key[1])
+               .append("\"} ")
+               .append(entry.getValue().sum())
+               .append('\n');
+        }
+
+        appendMetric(out,
+                     "sds_content_tasks_queued",
+                     "gauge",
+                     "Number of transfers waiting for the content executor",
+                     queuedContentTasks.get());
+        appendMetric(out,
+                     "sds_content_tasks_active",
+                     "gauge",
+                     "Number of transfers being prepared by the content executor",
+                     activeContentTasks.get());
+        appendMetric(out,
+                     "sds_content_tasks_completed_total",
+                     "counter",
+                     "Number of transfers handled by the content executor",
+                     completedContentTasks.sum());
+        appendMetric(out,
+                     "sds_content_tasks_rejected_total",
+                     "counter",
+                     "Number of transfers rejected due to overload",
+                     rejectedContentTasks.sum());
+        appendMetric(out,
+                     "sds_content_tasks_abandoned_total",
+                     "counter",
+                     "Number of queued transfers dropped as the client has disconnected",
+                     abandonedContentTasks.sum());
+        return out.toString();
+    }
+
+    private void appendMetric(StringBuilder out, String name, String type, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.HttpChunkedInput;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+import java.io.EOFException;
+import java.io.InputStream;
+
+/**
+ * Sends a range of the data of a stream, reading one chunk at a time.
+ * <p>
+ * Netty reads the chunks on the event loop of the connection once the channel can accept more data. Therefore each
+ * call only performs a bounded amount of work: A stream which inflates an entry only inflates a single chunk, and
+ * the data in front of the requested range is skipped in steps, letting other connections proceed in between. Unlike
+ * preparing the whole body up front, this neither occupies a thread of the <tt>content</tt> executor for the whole
+ * transfer nor requires any temporary disk space, and the first byte is sent right away.
+ * <p>
+ * While skipping, no chunk is returned, which suspends the transfer until it is resumed by a task scheduled on the
+ * event loop. As {@link HttpChunkedInput} cannot handle an input which returns no chunk, this input provides the
+ * HTTP chunks (including the last one) itself.
+ */
+class StreamChunkedInput implements ChunkedInput<HttpContent> {
+
+    /**
+     * Contains the max number of bytes skipped per call, before other connections get their turn.
+     */
+    private static final int MAX_SKIP_PER_CALL = 256 * 1024;
+
+    private final InputStream input;
+    private final int chunkSize;
+    private long bytesToSkip;
+    private long remainingBytes;
+    private boolean lastChunkSent;
+
+    /**
+     * Creates a new input.
+     *
+     * @param input     the stream to read, which is closed along with this input
+     * @param offset    the number of bytes to skip before the first byte to send
+     * @param length    the number of bytes to send
+     * @param chunkSize the max number of bytes to read per chunk
+     */
+    StreamChunkedInput(InputStream input, long offset, long length, int chunkSize) {
+        this.input = input;
+        this.bytesToSkip = offset;
+        this.remainingBytes = length;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public boolean isEndOfInput() throws Exception {
+        return lastChunkSent;
+    }
+
+    @Override
+    public void close() throws Exception {
+        input.close();
+    }
+
+    @Override
+    public HttpContent readChunk(ChannelHandlerContext ctx) throws Exception {
+        if (lastChunkSent) {
+            return null;
+        }
+        if (remainingBytes <= 0) {
+            lastChunkSent = true;
+            return LastHttpContent.EMPTY_LAST_CONTENT;
+        }
+        if (bytesToSkip > 0) {
+            bytesToSkip -= skip(Math.min(bytesToSkip, MAX_SKIP_PER_CALL));
+            if (bytesToSkip > 0) {
+                // Yield to other connections and continue skipping once it is our turn again...
+                ChunkedWriteHandler writer = ctx.pipeline().get(ChunkedWriteHandler.class);
+                ctx.channel().eventLoop().execute(writer::resumeTransfer);
+                return null;
+            }
+        }
+        int length = (int) Math.min(chunkSize, remainingBytes);
+        ByteBuf buffer = ctx.alloc().buffer(length);
+        boolean release = true;
+        try {
+            int bytesRead = buffer.writeBytes(input, length);
+            if (bytesRead < 0) {
+                throw new EOFException("Unexpected end of data");
+            }
+            remainingBytes -= bytesRead;
+            release = false;
+            return new DefaultHttpContent(buffer);
+        } finally {
+            if (release) {
+                buffer.release();
+            }
+        }
+    }
+
+    private long skip(long bytes) throws Exception {
+        long skipped = input.skip(bytes);
+        if (skipped > 0) {
+            return skipped;
+        }
+        // InputStream.skip may return 0 without having reached the end, therefore this is checked explicitly...
+        if (input.read() < 0) {
+            throw new EOFException("Unexpected end of data");
+        }
+        return 1;
+    }
+}
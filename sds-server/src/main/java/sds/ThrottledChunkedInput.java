@@ -0,0 +1,82 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.stream.ChunkedInput;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the chunks of the given input no faster than permitted by a {@link BandwidthLimiter.Throttle}.
+ * <p>
+ * If a chunk has to wait, no chunk is returned to the {@link ChunkedWriteHandler}, which then suspends the transfer.
+ * Once the chunk may be sent, the transfer is resumed by a task scheduled on the event loop of the channel. Therefore
+ * a throttled transfer doesn't occupy any thread while it waits.
+ */
+class ThrottledChunkedInput implements ChunkedInput<HttpContent> {
+
+    private final ChunkedInput<HttpContent> input;
+    private final BandwidthLimiter.Throttle throttle;
+    private HttpContent pendingChunk;
+    private long pendingUntil;
+
+    /**
+     * Creates a new throttled input.
+     *
+     * @param input    the input to send
+     * @param throttle the limits to obey
+     */
+    ThrottledChunkedInput(ChunkedInput<HttpContent> input, BandwidthLimiter.Throttle throttle) {
+        this.input = input;
+        this.throttle = throttle;
+    }
+
+    @Override
+    public boolean isEndOfInput() throws Exception {
+        return pendingChunk == null && input.isEndOfInput();
+    }
+
+    @Override
+    public void close() throws Exception {
+        if (pendingChunk != null) {
+            pendingChunk.content().release();
+            pendingChunk = null;
+        }
+        input.close();
+    }
+
+    @Override
+    public HttpContent readChunk(ChannelHandlerContext ctx) throws Exception {
+        if (pendingChunk == null) {
+            HttpContent chunk = input.readChunk(ctx);
+            if (chunk == null) {
+                return null;
+            }
+            int length = chunk.content().readableBytes();
+            long delay = length == 0 ? 0 : throttle.reserve(length);
+            if (delay <= 0) {
+                return chunk;
+            }
+            pendingChunk = chunk;
+            pendingUntil = System.nanoTime() + delay;
+        }
+        long remainingDelay = pendingUntil - System.nanoTime();
+        if (remainingDelay <= 0) {
+            HttpContent chunk = pendingChunk;
+            pendingChunk = null;
+            return chunk;
+        }
+        ChunkedWriteHandler writer = ctx.pipeline().get(ChunkedWriteHandler.class);
+        ctx.channel().eventLoop().schedule(writer::resumeTransfer, remainingDelay, TimeUnit.NANOSECONDS);
+        return null;
+    }
+}
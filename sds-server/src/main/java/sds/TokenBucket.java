@@ -0,0 +1,63 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits a data rate by handing out tokens (bytes) at a fixed rate.
+ * <p>
+ * Up to one second worth of tokens can be accumulated, so that short bursts are permitted. A caller always gets the
+ * tokens it asks for, but the bucket might go into debt, which is then paid off by waiting.
+ */
+class TokenBucket {
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long bytesPerSecond;
+    private long available;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * Creates a new bucket for the given rate.
+     *
+     * @param bytesPerSecond the number of bytes which may be sent per second
+     */
+    TokenBucket(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.available = bytesPerSecond;
+    }
+
+    /**
+     * Takes the given number of tokens.
+     *
+     * @param bytes the number of bytes about to be sent
+     * @return the number of nanoseconds to wait before the bytes may be sent
+     */
+    synchronized long reserve(long bytes) {
+        long now = System.nanoTime();
+        // No more than a second worth of tokens can be added, which also keeps the multiplication from overflowing...
+        long refill = Math.min(now - lastRefill, NANOS_PER_SECOND) * bytesPerSecond / NANOS_PER_SECOND;
+        if (refill > 0) {
+            available += refill;
+            if (available >= bytesPerSecond) {
+                available = bytesPerSecond;
+                lastRefill = now;
+            } else {
+                // Only advance by the time which has been converted into tokens, so that no fractions are lost...
+                lastRefill += refill * NANOS_PER_SECOND / bytesPerSecond;
+            }
+        }
+        available -= bytes;
+        if (available >= 0) {
+            return 0;
+        }
+        return -available * NANOS_PER_SECOND / bytesPerSecond;
+    }
+}
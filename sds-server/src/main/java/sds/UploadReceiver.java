@@ -0,0 +1,135 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import com.google.common.io.BaseEncoding;
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import sirius.kernel.async.Tasks;
+import sirius.kernel.commons.Strings;
+import sirius.kernel.health.Exceptions;
+import sirius.kernel.health.Log;
+import sirius.web.http.ContentHandler;
+import sirius.web.http.WebContext;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Receives the body of an upload while it arrives.
+ * <p>
+ * The data is written straight into a staging directory of the {@link Repository} while its MD5 hash is computed.
+ * Once the upload is complete, the hash is verified and the staging directory is published as new version. As the
+ * staging directory resides in the repository, this is a simple rename, so that the data is written exactly once.
+ */
+class UploadReceiver implements ContentHandler {
+
+    private static final Log LOG = Log.get("sds");
+
+    private final WebContext ctx;
+    private final String artifact;
+    private final String expectedHash;
+    private final Repository repository;
+    private final Tasks tasks;
+    private final ServerMetrics metrics;
+    private final long start = System.nanoTime();
+    private final File stagingDir;
+    private final FileChannel channel;
+    private final MessageDigest digest;
+    private boolean completed;
+
+    /**
+     * Creates a new receiver for the given upload.
+     *
+     * @param ctx          the upload request
+     * @param artifact     the artifact being uploaded
+     * @param expectedHash the MD5 hash given by the client or <tt>null</tt> if none was given
+     * @param repository   the repository to store the upload in
+     * @param tasks        used to verify and publish the upload without blocking the network thread
+     * @param metrics      used to record the duration of the upload
+     * @throws IOException in case the staging directory cannot be created
+     */
+    UploadReceiver(WebContext ctx,
+                   String artifact,
+                   String expectedHash,
+                   Repository repository,
+                   Tasks tasks,
+                   ServerMetrics metrics) throws IOException {
+        this.ctx = ctx;
+        this.artifact = artifact;
+        this.expectedHash = expectedHash;
+        this.repository = repository;
+        this.tasks = tasks;
+        this.metrics = metrics;
+        this.stagingDir = repository.createStagingDirectory(artifact);
+        this.channel = new FileOutputStream(new File(stagingDir, Repository.ARTIFACT_FILE)).getChannel();
+        try {
+            this.digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw Exceptions.handle(LOG, e);
+        }
+    }
+
+    @Override
+    public void handle(ByteBuf content, boolean last) throws IOException {
+        if (content.readableBytes() > 0) {
+            ByteBuffer buffer = content.nioBuffer();
+            digest.update(buffer.duplicate());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        if (last) {
+            channel.close();
+            synchronized (this) {
+                completed = true;
+            }
+            tasks.executor("upload").fork(this::publish);
+        }
+    }
+
+    private void publish() {
+        try {
+            String computedHash = BaseEncoding.base16().lowerCase().encode(digest.digest());
+            if (Strings.isFilled(expectedHash) && !computedHash.equals(expectedHash)) {
+                repository.discardStagingDirectory(stagingDir);
+                ctx.respondWith().error(HttpResponseStatus.BAD_REQUEST, "MD5 checksum mismatch");
+                return;
+            }
+            int version = repository.publishUpload(artifact, stagingDir);
+            LOG.INFO(Strings.apply("Stored version %d of %s", version, artifact));
+            ctx.respondWith().status(HttpResponseStatus.OK);
+        } catch (IOException e) {
+            ctx.respondWith()
+               .error(HttpResponseStatus.INTERNAL_SERVER_ERROR, Exceptions.createHandled().error(e).handle());
+        } catch (Throwable e) {
+            ctx.respondWith().error(HttpResponseStatus.INTERNAL_SERVER_ERROR, Exceptions.handle(LOG, e));
+        } finally {
+            metrics.getUploadDuration().recordSince(start);
+        }
+    }
+
+    @Override
+    public void cleanup() throws IOException {
+        synchronized (this) {
+            if (completed) {
+                // The upload is being published (or discarded) by publish()...
+                return;
+            }
+            completed = true;
+        }
+        channel.close();
+        repository.discardStagingDirectory(stagingDir);
+    }
+}
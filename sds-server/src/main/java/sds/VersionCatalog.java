@@ -0,0 +1,343 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import sirius.kernel.Lifecycle;
+import sirius.kernel.commons.Strings;
+import sirius.kernel.di.std.Part;
+import sirius.kernel.di.std.Register;
+import sirius.kernel.health.Exceptions;
+import sirius.kernel.health.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Keeps track of all stored artifacts and their versions in memory.
+ * <p>
+ * The catalog is built on startup and then updated by the {@link Repository} whenever a version is added or removed.
+ * Changes made by others (e.g. a version being deleted manually) are picked up by watching the repository directory.
+ * Therefore resolving the latest version or listing all versions doesn't require any file system access.
+ */
+@Register(classes = {VersionCatalog.class, Lifecycle.class})
+public class VersionCatalog implements Lifecycle {
+
+    private static final Log LOG = Log.get("sds");
+
+    @Part
+    private Repository repository;
+
+    @Part
+    private RetentionJanitor janitor;
+
+    private final Map<String, ArtifactVersions> artifacts = Maps.newConcurrentMap();
+    private final Map<WatchKey, String> watchedDirectories = Maps.newConcurrentMap();
+    private volatile WatchService watchService;
+
+    /**
+     * Contains an immutable snapshot of all versions of an artifact.
+     */
+    private static class ArtifactVersions {
+        private final List<ArtifactVersion> versions;
+        private final Map<Integer, ArtifactVersion> versionsByNumber;
+
+        ArtifactVersions(List<ArtifactVersion> versions) {
+            List<ArtifactVersion> sortedVersions = Lists.newArrayList(versions);
+            sortedVersions.sort(Comparator.comparing(ArtifactVersion::getVersion).reversed());
+            this.versions = ImmutableList.copyOf(sortedVersions);
+            this.versionsByNumber = Maps.newHashMap();
+            for (ArtifactVersion version : sortedVersions) {
+                versionsByNumber.put(version.getVersion(), version);
+            }
+        }
+
+        ArtifactVersion getLatest() {
+            return versions.isEmpty() ? null : versions.get(0);
+        }
+
+        ArtifactVersions with(ArtifactVersion version) {
+            List<ArtifactVersion> result = Lists.newArrayList(versions);
+            result.removeIf(v -> v.getVersion() == version.getVersion());
+            result.add(version);
+            return new ArtifactVersions(result);
+        }
+
+        ArtifactVersions without(int version) {
+            List<ArtifactVersion> result = Lists.newArrayList(versions);
+            result.removeIf(v -> v.getVersion() == version);
+            return new ArtifactVersions(result);
+        }
+    }
+
+    /**
+     * Determines if there is a directory for the given artifact.
+     *
+     * @param artifact the name of the artifact
+     * @return <tt>true</tt> if the artifact is known, <tt>false</tt> otherwise
+     */
+    public boolean isKnown(String artifact) {
+        return artifacts.containsKey(artifact);
+    }
+
+    /**
+     * Returns the names of all known artifacts.
+     *
+     * @return the names of all artifacts which have a directory in the repository
+     */
+    public Set<String> getArtifacts() {
+        return Collections.unmodifiableSet(artifacts.keySet());
+    }
+
+    /**
+     * Returns the latest version of the given artifact.
+     *
+     * @param artifact the name of the artifact
+     * @return the version with the highest number or <tt>null</tt> if no version is available
+     */
+    public ArtifactVersion getLatestVersion(String artifact) {
+        ArtifactVersions versions = artifacts.get(artifact);
+        return versions == null ? null : versions.getLatest();
+    }
+
+    /**
+     * Returns the requested version of the given artifact.
+     *
+     * @param artifact the name of the artifact
+     * @param version  the version number
+     * @return the requested version or <tt>null</tt> if there is no such version
+     */
+    public ArtifactVersion getVersion(String artifact, int version) {
+        ArtifactVersions versions = artifacts.get(artifact);
+        return versions == null ? null : versions.versionsByNumber.get(version);
+    }
+
+    /**
+     * Returns all versions of the given artifact.
+     *
+     * @param artifact the name of the artifact
+     * @return all versions, sorted by version number in descending order
+     */
+    public List<ArtifactVersion> getVersions(String artifact) {
+        ArtifactVersions versions = artifacts.get(artifact);
+        return versions == null ? ImmutableList.of() : versions.versions;
+    }
+
+    /**
+     * Records a new version which has been stored in the repository.
+     *
+     * @param version the version to add
+     */
+    public void add(ArtifactVersion version) {
+        artifacts.compute(version.getArtifact(),
+                          (artifact, versions) -> versions == null ?
+                                                  new ArtifactVersions(ImmutableList.of(version)) :
+                                                  versions.with(version));
+    }
+
+    /**
+     * Removes a version which is being deleted from the repository.
+     *
+     * @param artifact the name of the artifact
+     * @param version  the version number to remove
+     */
+    public void remove(String artifact, int version) {
+        artifacts.computeIfPresent(artifact, (name, versions) -> versions.without(version));
+    }
+
+    /**
+     * Loads the metadata of a version directory.
+     *
+     * @param artifact   the name of the artifact
+     * @param versionDir the directory of the version
+     * @return the metadata of the version
+     * @throws IOException in case the index of the version cannot be read
+     */
+    public ArtifactVersion loadVersion(String artifact, File versionDir) throws IOException {
+        ArtifactIndex index = repository.getIndex(artifact, versionDir.getName());
+        File dataFile = new File(versionDir, Repository.ARTIFACT_FILE);
+        if (index.isBlobStorage()) {
+            long size = 0;
+            for (IndexEntry entry : index.getEntries()) {
+                size += entry.getCompressedSize();
+            }
+            File indexFile = new File(versionDir, ArtifactIndex.INDEX_FILE);
+            return new ArtifactVersion(artifact,
+                                       Integer.parseInt(versionDir.getName()),
+                                       versionDir,
+                                       size,
+                                       indexFile.lastModified(),
+                                       index.size());
+        }
+        return new ArtifactVersion(artifact,
+                                   Integer.parseInt(versionDir.getName()),
+                                   versionDir,
+                                   dataFile.length(),
+                                   dataFile.lastModified(),
+                                   index.size());
+    }
+
+    /**
+     * Re-reads all artifacts from disk.
+     * <p>
+     * This is done on startup and can be invoked if the repository path changes.
+     */
+    public void reload() {
+        try {
+            File repositoryDir = repository.getRepositoryPath();
+            watchDirectory(repositoryDir, null);
+            Set<String> names = Sets.newHashSet(artifacts.keySet());
+            File[] children = repositoryDir.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (child.isDirectory() && !child.getName().startsWith(".")) {
+                        names.add(child.getName());
+                    }
+                }
+            }
+            names.forEach(this::refresh);
+        } catch (IOException e) {
+            Exceptions.handle(LOG, e);
+        }
+    }
+
+    /**
+     * Re-reads all versions of the given artifact from disk.
+     * <p>
+     * The read lock of the artifact is held while listing the versions, so that no version is published in the
+     * meantime. Retired versions are filtered when the new snapshot is installed, as the {@link RetentionJanitor}
+     * doesn't lock the artifact.
+     *
+     * @param artifact the name of the artifact
+     */
+    public void refresh(String artifact) {
+        Lock readLock = repository.getLock(artifact).readLock();
+        readLock.lock();
+        try {
+            File baseDir = new File(repository.getRepositoryPath(), artifact);
+            if (!baseDir.isDirectory()) {
+                artifacts.remove(artifact);
+                return;
+            }
+            watchDirectory(baseDir, artifact);
+            List<ArtifactVersion> versions = Lists.newArrayList();
+            for (File versionDir : repository.getVersionDirs(baseDir)) {
+                try {
+                    versions.add(loadVersion(artifact, versionDir));
+                } catch (IOException e) {
+                    Exceptions.handle(LOG, e);
+                }
+            }
+            // A version is retired before it is removed from the catalog and unlinked after it has been renamed,
+            // therefore checking both while holding the entry excludes any version retired in the meantime...
+            artifacts.compute(artifact, (name, ignored) -> {
+                versions.removeIf(version -> janitor.isRetired(artifact, version.getVersion())
+                                             || !version.getDirectory().isDirectory());
+                return new ArtifactVersions(versions);
+            });
+        } catch (IOException e) {
+            Exceptions.handle(LOG, e);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    private void watchDirectory(File directory, String artifact) throws IOException {
+        if (watchService == null) {
+            return;
+        }
+        WatchKey key = directory.toPath()
+                                .register(watchService,
+                                          StandardWatchEventKinds.ENTRY_CREATE,
+                                          StandardWatchEventKinds.ENTRY_DELETE,
+                                          StandardWatchEventKinds.ENTRY_MODIFY);
+        // The repository directory itself is registered with an empty name...
+        watchedDirectories.put(key, artifact == null ? "" : artifact);
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                String artifact = watchedDirectories.get(key);
+                if (artifact == null) {
+                    key.cancel();
+                    continue;
+                }
+                Set<String> changedArtifacts = Sets.newTreeSet();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        changedArtifacts.addAll(artifacts.keySet());
+                    } else {
+                        String name = String.valueOf(event.context());
+                        if (!name.startsWith(".")) {
+                            changedArtifacts.add(artifact.isEmpty() ? name : artifact);
+                        }
+                    }
+                }
+                if (!key.reset()) {
+                    watchedDirectories.remove(key);
+                }
+                changedArtifacts.forEach(this::refresh);
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            Exceptions.ignore(e);
+        }
+    }
+
+    @Override
+    public void started() {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            Thread watcher = new Thread(this::watch, "sds-catalog-watcher");
+            watcher.setDaemon(true);
+            watcher.start();
+        } catch (IOException e) {
+            Exceptions.handle(LOG, e);
+        }
+        reload();
+        LOG.INFO(Strings.apply("The repository contains %d artifacts", artifacts.size()));
+    }
+
+    @Override
+    public void stopped() {
+        try {
+            if (watchService != null) {
+                watchService.close();
+            }
+        } catch (IOException e) {
+            Exceptions.ignore(e);
+        }
+    }
+
+    @Override
+    public void awaitTermination() {
+        // Nothing to wait for...
+    }
+
+    @Override
+    public String getName() {
+        return "sds-catalog";
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import sirius.kernel.commons.Strings;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Lists the files which were added, changed or removed between two versions of an artifact.
+ * <p>
+ * When a version is uploaded, the diff against its predecessor is computed and stored next to its index. This permits
+ * a client which knows its current version to only fetch the changes instead of the whole index.
+ */
+public class VersionDiff {
+
+    /**
+     * Contains the name of the sidecar file which contains the changes against the previous version.
+     */
+    public static final String DIFF_FILE = "artifact.diff";
+
+    private static final int MAGIC = 0x53445344;
+    private static final int FORMAT_VERSION = 2;
+
+    /**
+     * Diffs in format version 1 don't record the format of their entries, which was always version 2 of the index.
+     */
+    private static final int LEGACY_ENTRY_FORMAT_VERSION = 2;
+
+    private final int fromVersion;
+    private final int toVersion;
+    private final List<IndexEntry> changedEntries;
+    private final List<String> removedEntries;
+
+    /**
+     * Creates a new diff.
+     *
+     * @param fromVersion    the version the diff starts from
+     * @param toVersion      the version the diff leads to
+     * @param changedEntries the entries which were added or changed
+     * @param removedEntries the names of the entries which were removed
+     */
+    public VersionDiff(int fromVersion, int toVersion, List<IndexEntry> changedEntries, List<String> removedEntries) {
+        this.fromVersion = fromVersion;
+        this.toVersion = toVersion;
+        this.changedEntries = Collections.unmodifiableList(changedEntries);
+        this.removedEntries = Collections.unmodifiableList(removedEntries);
+    }
+
+    /**
+     * Computes the changes between the two given indices.
+     *
+     * @param fromVersion the older version
+     * @param from        the index of the older version
+     * @param toVersion   the newer version
+     * @param to          the index of the newer version
+     * @return the changes which lead from the older to the newer version
+     */
+    public static VersionDiff compute(int fromVersion, ArtifactIndex from, int toVersion, ArtifactIndex to) {
+        List<IndexEntry> changed = Lists.newArrayList();
+        for (IndexEntry entry : to.getEntries()) {
+            IndexEntry previous = from.getEntry(entry.getName());
+            if (previous == null || previous.getSize() != entry.getSize() || previous.getCrc() != entry.getCrc()) {
+                changed.add(entry);
+            }
+        }
+        List<String> removed = Lists.newArrayList();
+        for (IndexEntry entry : from.getEntries()) {
+            if (to.getEntry(entry.getName()) == null) {
+                removed.add(entry.getName());
+            }
+        }
+        return new VersionDiff(fromVersion, toVersion, changed, removed);
+    }
+
+    /**
+     * Combines this diff with the one of the following version.
+     *
+     * @param next the diff which starts at the version this diff leads to
+     * @return a diff which leads from the start of this diff to the end of the given one
+     */
+    public VersionDiff then(VersionDiff next) {
+        Map<String, IndexEntry> changed = Maps.newLinkedHashMap();
+        Set<String> removed = Sets.newLinkedHashSet(removedEntries);
+        for (IndexEntry entry : changedEntries) {
+            changed.put(entry.getName(), entry);
+        }
+        for (IndexEntry entry : next.changedEntries) {
+            changed.put(entry.getName(), entry);
+            removed.remove(entry.getName());
+        }
+        for (String name : next.removedEntries) {
+            changed.remove(name);
+            removed.add(name);
+        }
+        return new VersionDiff(fromVersion,
+                               next.toVersion,
+                               Lists.newArrayList(changed.values()),
+                               Lists.newArrayList(removed));
+    }
+
+    /**
+     * Reads a diff which was previously stored using {@link #write(File)}.
+     *
+     * @param file the sidecar file to read
+     * @return the diff read from the given file
+     * @throws IOException in case of an IO error or if the file has an unknown format
+     */
+    public static VersionDiff read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(Strings.apply("Unknown diff format: %s", file.getAbsolutePath()));
+            }
+            int formatVersion = in.readInt();
+            if (formatVersion < 1 || formatVersion > FORMAT_VERSION) {
+                throw new IOException(Strings.apply("Unknown diff format: %s", file.getAbsolutePath()));
+            }
+            int entryFormatVersion = formatVersion >= 2 ? in.readInt() : LEGACY_ENTRY_FORMAT_VERSION;
+            if (entryFormatVersion < 1 || entryFormatVersion > ArtifactIndex.FORMAT_VERSION) {
+                throw new IOException(Strings.apply("Unknown entry format in diff: %s", file.getAbsolutePath()));
+            }
+            int fromVersion = in.readInt();
+            int toVersion = in.readInt();
+            int numChanged = in.readInt();
+            List<IndexEntry> changed = Lists.newArrayListWithCapacity(numChanged);
+            for (int i = 0; i < numChanged; i++) {
+                changed.add(ArtifactIndex.readEntry(in, entryFormatVersion));
+            }
+            int numRemoved = in.readInt();
+            List<String> removed = Lists.newArrayListWithCapacity(numRemoved);
+            for (int i = 0; i < numRemoved; i++) {
+                removed.add(in.readUTF());
+            }
+            return new VersionDiff(fromVersion, toVersion, changed, removed);
+        }
+    }
+
+    /**
+     * Stores the diff in the given file.
+     *
+     * @param file the sidecar file to write
+     * @throws IOException in case of an IO error
+     */
+    public void write(File file) throws IOException {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(ArtifactIndex.FORMAT_VERSION);
+            out.writeInt(fromVersion);
+            out.writeInt(toVersion);
+            out.writeInt(changedEntries.size());
+            for (IndexEntry entry : changedEntries) {
+                ArtifactIndex.writeEntry(out, entry);
+            }
+            out.writeInt(removedEntries.size());
+            for (String name : removedEntries) {
+                out.writeUTF(name);
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public int getFromVersion() {
+        return fromVersion;
+    }
+
+    public int getToVersion() {
+        return toVersion;
+    }
+
+    /**
+     * Returns all files which were added or changed.
+     *
+     * @return the entries of all added or changed files as found in the newer version
+     */
+    public List<IndexEntry> getChangedEntries() {
+        return changedEntries;
+    }
+
+    /**
+     * Returns all files which were removed.
+     *
+     * @return the names of all removed files
+     */
+    public List<String> getRemovedEntries() {
+        return removedEntries;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import com.google.common.base.Charsets;
+import sirius.kernel.commons.Strings;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.function.Consumer;
+
+/**
+ * Reads the central directory of a ZIP file.
+ * <p>
+ * In contrast to {@link java.util.zip.ZipFile} this also determines where the data of each entry starts, which is
+ * required to serve entries straight from the archive. ZIP64 archives are supported, encrypted or multi disk archives
+ * are not.
+ */
+class ZipDirectory {
+
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR = 0x07064b50;
+    private static final int CENTRAL_FILE_HEADER = 0x02014b50;
+    private static final int LOCAL_FILE_HEADER = 0x04034b50;
+
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int LOCAL_FILE_HEADER_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final int ZIP64_EXTRA_FIELD = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private ZipDirectory() {
+    }
+
+    /**
+     * Enumerates all files (not directories) of the given ZIP file in the order of the central directory.
+     *
+     * @param zipFile   the archive to read
+     * @param collector the consumer which is supplied with each entry
+     * @throws IOException in case of an IO error or if the file isn't a valid ZIP archive
+     */
+    public static void read(File zipFile, Consumer<IndexEntry> collector) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(zipFile, "r")) {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer directory = readCentralDirectory(channel, zipFile);
+            ByteBuffer localHeader = ByteBuffer.allocate(LOCAL_FILE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (directory.remaining() >= 4 && directory.getInt(directory.position()) == CENTRAL_FILE_HEADER) {
+                IndexEntry entry = readEntry(directory, channel, localHeader, zipFile);
+                if (entry != null) {
+                    collector.accept(entry);
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer readCentralDirectory(FileChannel channel, File zipFile) throws IOException {
+        long fileSize = channel.size();
+        int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = readFully(channel, fileSize - tailSize, tailSize);
+        int eocd = -1;
+        for (int pos = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; pos >= 0; pos--) {
+            if (tail.getInt(pos) == END_OF_CENTRAL_DIRECTORY) {
+                eocd = pos;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException(Strings.apply("Not a valid ZIP file: %s", zipFile.getName()));
+        }
+        long numEntries = tail.getShort(eocd + 10) & 0xFFFF;
+        long directorySize = tail.getInt(eocd + 12) & ZIP64_MAGIC;
+        long directoryOffset = tail.getInt(eocd + 16) & ZIP64_MAGIC;
+
+        if (numEntries == 0xFFFF || directorySize == ZIP64_MAGIC || directoryOffset == ZIP64_MAGIC) {
+            long locatorPos = fileSize - tailSize + eocd - ZIP64_LOCATOR_SIZE;
+            if (locatorPos >= 0) {
+                ByteBuffer locator = readFully(channel, locatorPos, ZIP64_LOCATOR_SIZE);
+                if (locator.getInt(0) == ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR) {
+                    ByteBuffer zip64 = readFully(channel, locator.getLong(8), 56);
+                    if (zip64.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY) {
+                        throw new IOException(Strings.apply("Invalid ZIP64 directory in: %s", zipFile.getName()));
+                    }
+                    directorySize = zip64.getLong(40);
+                    directoryOffset = zip64.getLong(48);
+                }
+            }
+        }
+
+        if (directoryOffset < 0 || directorySize < 0 || directoryOffset + directorySize > fileSize) {
+            throw new IOException(Strings.apply("Invalid central directory in: %s", zipFile.getName()));
+        }
+        if (directorySize > Integer.MAX_VALUE) {
+            throw new IOException(Strings.apply("Central directory of %s is too large", zipFile.getName()));
+        }
+
+        return readFully(channel, directoryOffset, (int) directorySize);
+    }
+
+    private static IndexEntry readEntry(ByteBuffer directory, FileChannel channel, ByteBuffer localHeader, File zipFile)
+            throws IOException {
+        int start = directory.position();
+        if (directory.remaining() < 46) {
+            throw new IOException(Strings.apply("Truncated central directory in: %s", zipFile.getName()));
+        }
+        int method = directory.getShort(start + 10) & 0xFFFF;
+        long crc = directory.getInt(start + 16) & ZIP64_MAGIC;
+        long compressedSize = directory.getInt(start + 20) & ZIP64_MAGIC;
+        long size = directory.getInt(start + 24) & ZIP64_MAGIC;
+        int nameLength = directory.getShort(start + 28) & 0xFFFF;
+        int extraLength = directory.getShort(start + 30) & 0xFFFF;
+        int commentLength = directory.getShort(start + 32) & 0xFFFF;
+        long headerOffset = directory.getInt(start + 42) & ZIP64_MAGIC;
+        if (directory.remaining() < 46 + nameLength + extraLength + commentLength) {
+            throw new IOException(Strings.apply("Truncated central directory in: %s", zipFile.getName()));
+        }
+
+        byte[] nameBytes = new byte[nameLength];
+        directory.position(start + 46);
+        directory.get(nameBytes);
+        String name = new String(nameBytes, Charsets.UTF_8);
+
+        int extraPos = start + 46 + nameLength;
+        int extraEnd = extraPos + extraLength;
+        while (extraPos + 4 <= extraEnd) {
+            int tag = directory.getShort(extraPos) & 0xFFFF;
+            int length = directory.getShort(extraPos + 2) & 0xFFFF;
+            if (tag == ZIP64_EXTRA_FIELD) {
+                int pos = extraPos + 4;
+                if (size == ZIP64_MAGIC && pos + 8 <= extraEnd) {
+                    size = directory.getLong(pos);
+                    pos += 8;
+                }
+                if (compressedSize == ZIP64_MAGIC && pos + 8 <= extraEnd) {
+                    compressedSize = directory.getLong(pos);
+                    pos += 8;
+                }
+                if (headerOffset == ZIP64_MAGIC && pos + 8 <= extraEnd) {
+                    headerOffset = directory.getLong(pos);
+                }
+            }
+            extraPos += 4 + length;
+        }
+        directory.position(extraEnd + commentLength);
+
+        if (name.endsWith("/")) {
+            return null;
+        }
+
+        localHeader.clear();
+        readFully(channel, headerOffset, localHeader);
+        if (localHeader.getInt(0) != LOCAL_FILE_HEADER) {
+            throw new IOException(Strings.apply("Invalid local header for '%s' in: %s", name, zipFile.getName()));
+        }
+        long dataOffset = headerOffset
+                          + LOCAL_FILE_HEADER_SIZE
+                          + (localHeader.getShort(26) & 0xFFFF)
+                          + (localHeader.getShort(28) & 0xFFFF);
+        if (dataOffset + compressedSize > channel.size()) {
+            throw new IOException(Strings.apply("Data of '%s' exceeds the size of: %s", name, zipFile.getName()));
+        }
+
+        return new IndexEntry(name, size, crc, compressedSize, method, dataOffset);
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, position, buffer);
+        buffer.rewind();
+        return buffer;
+    }
+
+    private static void readFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+}
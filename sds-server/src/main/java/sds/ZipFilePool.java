@@ -0,0 +1,209 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds;
+
+import sirius.kernel.di.std.ConfigValue;
+import sirius.kernel.di.std.Register;
+import sirius.kernel.health.Exceptions;
+import sirius.kernel.health.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipFile;
+
+/**
+ * Keeps a bounded number of {@link ZipFile ZIP files} open so that downloads don't have to open and parse an
+ * artifact for each requested file.
+ * <p>
+ * Files are handed out as {@link Lease leases}, which have to be closed once the file is no longer used. If the pool
+ * is full, the least recently used file which isn't leased is closed. A file which is {@link #invalidate(String, int)
+ * invalidated} while it is still leased, is closed as soon as the last lease is released. Until then, it still counts
+ * towards the limit, so that the pool keeps less files open in the meantime. Note that the limit can only be exceeded
+ * if more files are leased at once than permitted.
+ */
+@Register(classes = ZipFilePool.class)
+public class ZipFilePool {
+
+    private static final Log LOG = Log.get("sds");
+
+    @ConfigValue("sds.maxOpenFiles")
+    private int maxOpenFiles;
+
+    private final LinkedHashMap<String, PooledFile> openFiles = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private int evictedFilesInUse;
+
+    /**
+     * Represents the usage of a pooled ZIP file.
+     */
+    public class Lease implements AutoCloseable {
+
+        private final PooledFile file;
+        private boolean released;
+
+        private Lease(PooledFile file) {
+            this.file = file;
+        }
+
+        public ZipFile getZipFile() {
+            return file.zipFile;
+        }
+
+        @Override
+        public void close() {
+            synchronized (ZipFilePool.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                file.leases--;
+                if (file.evicted && file.leases == 0) {
+                    file.close();
+                    evictedFilesInUse--;
+                }
+            }
+        }
+    }
+
+    private static class PooledFile {
+        private final ZipFile zipFile;
+        private int leases;
+        private boolean evicted;
+
+        PooledFile(ZipFile zipFile) {
+            this.zipFile = zipFile;
+        }
+
+        void close() {
+            try {
+                zipFile.close();
+            } catch (IOException e) {
+                Exceptions.handle(LOG, e);
+            }
+        }
+    }
+
+    /**
+     * Provides access to the given version of an artifact.
+     *
+     * @param artifact the name of the artifact
+     * @param version  the version of the artifact
+     * @param file     the ZIP file to open if it isn't open yet
+     * @return a lease which provides access to the ZIP file and has to be closed once it is no longer used
+     * @throws IOException in case the file cannot be opened
+     */
+    public Lease acquire(String artifact, int version, File file) throws IOException {
+        String key = artifact + "/" + version;
+        synchronized (this) {
+            PooledFile pooledFile = openFiles.get(key);
+            if (pooledFile != null) {
+                hits.incrementAndGet();
+                return lease(pooledFile);
+            }
+        }
+
+        // Opening a ZIP file parses its central directory. We don't want to block other downloads while doing so...
+        misses.incrementAndGet();
+        ZipFile zipFile = new ZipFile(file);
+        synchronized (this) {
+            PooledFile pooledFile = openFiles.get(key);
+            if (pooledFile != null) {
+                // Another thread was faster...
+                new PooledFile(zipFile).close();
+                return lease(pooledFile);
+            }
+            pooledFile = new PooledFile(zipFile);
+            openFiles.put(key, pooledFile);
+            Lease result = lease(pooledFile);
+            evictExcessFiles();
+            return result;
+        }
+    }
+
+    private Lease lease(PooledFile pooledFile) {
+        pooledFile.leases++;
+        return new Lease(pooledFile);
+    }
+
+    private void evictExcessFiles() {
+        Iterator<PooledFile> iter = openFiles.values().iterator();
+        while (getOpenFiles() > Math.max(1, maxOpenFiles) && iter.hasNext()) {
+            PooledFile eldest = iter.next();
+            // Evicting a leased file wouldn't close it, therefore it is kept until it is no longer in use...
+            if (eldest.leases == 0) {
+                iter.remove();
+                evict(eldest);
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private void evict(PooledFile pooledFile) {
+        pooledFile.evicted = true;
+        if (pooledFile.leases == 0) {
+            pooledFile.close();
+        } else {
+            evictedFilesInUse++;
+        }
+    }
+
+    /**
+     * Closes the ZIP file of the given version as soon as it is no longer in use.
+     * <p>
+     * This must be invoked before a version is deleted.
+     *
+     * @param artifact the name of the artifact
+     * @param version  the version of the artifact
+     */
+    public synchronized void invalidate(String artifact, int version) {
+        PooledFile pooledFile = openFiles.remove(artifact + "/" + version);
+        if (pooledFile != null) {
+            evict(pooledFile);
+        }
+    }
+
+    /**
+     * Returns the number of ZIP files currently open.
+     *
+     * @return the number of files kept in the pool plus the number of evicted files which are still in use
+     */
+    public synchronized int getOpenFiles() {
+        return openFiles.size() + evictedFilesInUse;
+    }
+
+    /**
+     * Returns the number of ZIP files which have been removed from the pool but cannot be closed yet.
+     *
+     * @return the number of evicted files which are still leased
+     */
+    public synchronized int getEvictedFilesInUse() {
+        return evictedFilesInUse;
+    }
+
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+}
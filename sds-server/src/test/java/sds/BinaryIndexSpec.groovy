@@ -0,0 +1,85 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds
+
+import com.google.common.base.Charsets
+import com.google.common.hash.Hashing
+import sirius.kernel.BaseSpecification
+
+import java.util.function.IntConsumer
+import java.util.zip.GZIPInputStream
+
+/**
+ * Writes binary indices and reads them using the client.
+ * <p>
+ * The client lives in the default package, therefore it is loaded by name.
+ */
+class BinaryIndexSpec extends BaseSpecification {
+
+    def client = Class.forName("SDS").newInstance()
+
+    def indexFile = File.createTempFile("sds-index", ".sdsx")
+
+    def cleanup() {
+        indexFile.delete()
+    }
+
+    static IndexEntry entry(String name, long size, long crc, String hash) {
+        return new IndexEntry(name, size, crc, size, IndexEntry.STORED, 0, hash)
+    }
+
+    /**
+     * Reads the written index using the client and returns the version along with the indices of all consumed entries.
+     */
+    private Map readWithClient() {
+        List consumed = []
+        DataInputStream input = new DataInputStream(new GZIPInputStream(new FileInputStream(indexFile)))
+        try {
+            String version = client.readBinaryIndex(input, { consumed.add(it) } as IntConsumer)
+            return [version: version, consumed: consumed]
+        } finally {
+            input.close()
+        }
+    }
+
+    def "an index is read by the client as written by the server"() {
+        given:
+        String hash = Hashing.sha256().hashString("content", Charsets.UTF_8).toString()
+        List<IndexEntry> entries = [entry("lib/module/first.jar", 0, 0, hash),
+                                    entry("lib/module/second.jar", 1L << 40, 0xFFFFFFFFL, null),
+                                    entry("lib/modules.txt", 127, 0x80000000L, hash),
+                                    entry("lib/Überblick €.txt", 128, 1, null),
+                                    entry("a" * 300 + "/long.txt", 16383, 2, hash),
+                                    entry("b.txt", 16384, 3, hash)]
+        when:
+        BinaryIndex.write(indexFile, 42, new ArtifactIndex(entries, false))
+        def result = readWithClient()
+        then:
+        result.version == "42"
+        result.consumed == (0..<entries.size()).toList()
+        client.numberOfEntries == entries.size()
+        and:
+        (0..<entries.size()).every { i ->
+            client.entryNames[i] == entries[i].getName() &&
+                    client.entrySizes[i] == entries[i].getSize() &&
+                    client.entryCRCs[i] == entries[i].getCrc() &&
+                    client.entryHashes[i] == entries[i].getHash()
+        }
+    }
+
+    def "an empty index is read by the client"() {
+        when:
+        BinaryIndex.write(indexFile, 1, new ArtifactIndex([], false))
+        def result = readWithClient()
+        then:
+        result.version == "1"
+        result.consumed.isEmpty()
+        client.numberOfEntries == 0
+    }
+}
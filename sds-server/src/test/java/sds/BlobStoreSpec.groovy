@@ -0,0 +1,173 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds
+
+import com.google.common.hash.Hashing
+import com.google.common.io.Files
+import sirius.kernel.BaseSpecification
+
+/**
+ * Verifies that blobs are shared between versions and removed once no version references them anymore.
+ * <p>
+ * Released blobs are only deleted by {@link BlobStore#deleteUnreferencedBlobs(int)}, which is usually invoked by the
+ * {@link RetentionJanitor}.
+ * <p>
+ * Each feature uses a store of its own, so that the reference counts start from the given repository.
+ */
+class BlobStoreSpec extends BaseSpecification {
+
+    def repositoryDir = Files.createTempDir()
+
+    def store = new BlobStore(repositoryPath: repositoryDir.getAbsolutePath())
+
+    def cleanup() {
+        repositoryDir.deleteDir()
+    }
+
+    static String hash(String content) {
+        return Hashing.sha256().hashBytes(content.getBytes("UTF-8")).toString()
+    }
+
+    /**
+     * Creates a ZIP file containing the given files and stores it in the given blob store.
+     */
+    private ArtifactIndex storeVersion(BlobStore blobStore, Map<String, String> files) {
+        File zipFile = TestArtifacts.writeZip(File.createTempFile("sds-blob", ".zip", repositoryDir), files)
+        List<IndexEntry> entries = ArtifactIndex.scan(zipFile).getEntries().collect { entry ->
+            new IndexEntry(entry.getName(),
+                           entry.getSize(),
+                           entry.getCrc(),
+                           entry.getCompressedSize(),
+                           entry.getMethod(),
+                           entry.getDataOffset(),
+                           hash(files.get(entry.getName())))
+        }
+        ArtifactIndex result = blobStore.store(zipFile, new ArtifactIndex(entries, false))
+        zipFile.delete()
+        return result
+    }
+
+    private String read(ArtifactIndex index, String name) {
+        InputStream input = store.openStream(index.getEntry(name))
+        try {
+            return new String(input.getBytes(), "UTF-8")
+        } finally {
+            input.close()
+        }
+    }
+
+    def "stored files can be read from their blobs"() {
+        when:
+        ArtifactIndex index = storeVersion(store, ["a.txt": "A" * 1000, "b.txt": "B"])
+        then:
+        index.isBlobStorage()
+        read(index, "a.txt") == "A" * 1000
+        read(index, "b.txt") == "B"
+    }
+
+    def "a blob shared by two versions is kept until both are released"() {
+        given:
+        ArtifactIndex first = storeVersion(store, ["shared.txt": "shared", "first.txt": "first"])
+        ArtifactIndex second = storeVersion(store, ["shared.txt": "shared", "second.txt": "second"])
+        when:
+        store.release(first)
+        store.deleteUnreferencedBlobs(Integer.MAX_VALUE)
+        then:
+        store.getBlobFile(second.getEntry("shared.txt")).exists()
+        store.getBlobFile(second.getEntry("second.txt")).exists()
+        !store.getBlobFile(first.getEntry("first.txt")).exists()
+        read(second, "shared.txt") == "shared"
+        when:
+        store.release(second)
+        store.deleteUnreferencedBlobs(Integer.MAX_VALUE)
+        then:
+        !store.getBlobFile(second.getEntry("shared.txt")).exists()
+        !store.getBlobFile(second.getEntry("second.txt")).exists()
+    }
+
+    def "a file contained twice in a version references its blob twice"() {
+        given:
+        ArtifactIndex first = storeVersion(store, ["a.txt": "same", "b.txt": "same"])
+        ArtifactIndex second = storeVersion(store, ["c.txt": "same"])
+        when:
+        store.release(second)
+        store.deleteUnreferencedBlobs(Integer.MAX_VALUE)
+        then:
+        read(first, "a.txt") == "same"
+        read(first, "b.txt") == "same"
+    }
+
+    def "the references are counted from the manifests of the stored versions"() {
+        given: "two versions written to disk and a store which starts from scratch"
+        ArtifactIndex first = storeVersion(store, ["shared.txt": "shared", "first.txt": "first"])
+        ArtifactIndex second = storeVersion(store, ["shared.txt": "shared"])
+        new File(repositoryDir, "test/1").mkdirs()
+        first.write(new File(repositoryDir, "test/1/" + ArtifactIndex.INDEX_FILE))
+        new File(repositoryDir, "test/2").mkdirs()
+        second.write(new File(repositoryDir, "test/2/" + ArtifactIndex.INDEX_FILE))
+        def restartedStore = new BlobStore(repositoryPath: repositoryDir.getAbsolutePath())
+        when:
+        restartedStore.release(first)
+        restartedStore.deleteUnreferencedBlobs(Integer.MAX_VALUE)
+        then:
+        restartedStore.getBlobFile(first.getEntry("shared.txt")).exists()
+        !restartedStore.getBlobFile(first.getEntry("first.txt")).exists()
+    }
+
+    def "released blobs are deleted within the given budget"() {
+        given:
+        ArtifactIndex index = storeVersion(store, ["a.txt": "A", "b.txt": "B", "c.txt": "C"])
+        when:
+        store.release(index)
+        then: "nothing is deleted by the release itself"
+        index.getEntries().every { store.getBlobFile(it).exists() }
+        when:
+        int processed = store.deleteUnreferencedBlobs(2)
+        then:
+        processed == 2
+        index.getEntries().count { store.getBlobFile(it).exists() } == 1
+        when:
+        processed = store.deleteUnreferencedBlobs(2)
+        then:
+        processed == 1
+        index.getEntries().every { !store.getBlobFile(it).exists() }
+    }
+
+    def "a released blob which is referenced again before it is deleted is kept"() {
+        given:
+        ArtifactIndex first = storeVersion(store, ["a.txt": "same"])
+        store.release(first)
+        when:
+        ArtifactIndex second = storeVersion(store, ["b.txt": "same"])
+        store.deleteUnreferencedBlobs(Integer.MAX_VALUE)
+        then:
+        read(second, "b.txt") == "same"
+    }
+
+    def "blobs left over by a previous run are collected"() {
+        given: "a blob which was released but not deleted before a restart"
+        ArtifactIndex index = storeVersion(store, ["a.txt": "A"])
+        def restartedStore = new BlobStore(repositoryPath: repositoryDir.getAbsolutePath())
+        when:
+        restartedStore.collectUnreferencedBlobs()
+        restartedStore.deleteUnreferencedBlobs(Integer.MAX_VALUE)
+        then:
+        !restartedStore.getBlobFile(index.getEntry("a.txt")).exists()
+    }
+
+    def "releasing an index which does not use the blob store is ignored"() {
+        given:
+        ArtifactIndex index = storeVersion(store, ["a.txt": "A"])
+        when:
+        store.release(new ArtifactIndex(index.getEntries(), false))
+        store.deleteUnreferencedBlobs(Integer.MAX_VALUE)
+        then:
+        store.getBlobFile(index.getEntry("a.txt")).exists()
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds
+
+import io.netty.handler.codec.http.HttpHeaders
+import sirius.kernel.BaseSpecification
+import sirius.web.http.WebContext
+
+class ByteRangeSpec extends BaseSpecification {
+
+    static final String ETAG = "\"42-1\""
+
+    def "a Range header is parsed"() {
+        given:
+        WebContext ctx = Mock(WebContext)
+        ctx.getHeader(HttpHeaders.Names.RANGE) >> header
+        when:
+        ByteRange range = ByteRange.parse(ctx, ETAG, 1000)
+        then:
+        range?.getContentRange() == contentRange
+        where:
+        header                        | contentRange
+        null                          | null
+        "bytes=0-99"                  | "bytes 0-99/1000"
+        " bytes=900- "                | "bytes 900-999/1000"
+        "bytes=-100"                  | "bytes 900-999/1000"
+        "bytes=-5000"                 | "bytes 0-999/1000"
+        "bytes=500-5000"              | "bytes 500-999/1000"
+        "bytes=1000-"                 | "bytes */1000"
+        "bytes=2000-3000"             | "bytes */1000"
+        "bytes=-0"                    | "bytes */1000"
+        "bytes=100-50"                | null
+        "bytes=0-1,5-9"               | null
+        "bytes=-"                     | null
+        "items=0-99"                  | null
+        "bytes=99999999999999999999-" | null
+    }
+
+    def "the first byte and the length of a range are computed"() {
+        given:
+        WebContext ctx = Mock(WebContext)
+        ctx.getHeader(HttpHeaders.Names.RANGE) >> "bytes=100-199"
+        when:
+        ByteRange range = ByteRange.parse(ctx, ETAG, 1000)
+        then:
+        range.isSatisfiable()
+        range.getFirst() == 100
+        range.getLength() == 100
+    }
+
+    def "a range is only honored if If-Range matches the current ETag"() {
+        given:
+        WebContext ctx = Mock(WebContext)
+        ctx.getHeader(HttpHeaders.Names.RANGE) >> "bytes=0-99"
+        ctx.getHeader(HttpHeaders.Names.IF_RANGE) >> ifRange
+        expect:
+        (ByteRange.parse(ctx, ETAG, 1000) != null) == honored
+        where:
+        ifRange    | honored
+        null       | true
+        ETAG       | true
+        "\"41-1\"" | false
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds
+
+import com.google.common.io.Files
+import com.google.common.primitives.Bytes
+import sirius.kernel.BaseSpecification
+
+/**
+ * Rebuilds files from the instructions computed by {@link DeltaEncoder} using the delta code of the client.
+ * <p>
+ * The client lives in the default package, therefore it is loaded by name.
+ */
+class DeltaEncoderSpec extends BaseSpecification {
+
+    def client = Class.forName("SDS").newInstance()
+
+    def localFile = File.createTempFile("sds-delta", ".bin")
+
+    def cleanup() {
+        localFile.delete()
+    }
+
+    static byte[] randomBytes(int length, long seed) {
+        byte[] result = new byte[length]
+        new Random(seed).nextBytes(result)
+        return result
+    }
+
+    static byte[] slice(byte[] data, int from, int to) {
+        return Arrays.copyOfRange(data, from, to)
+    }
+
+    /**
+     * Encodes the given current content against the signatures of the given local copy, just like the server does.
+     */
+    private byte[] encode(byte[] local, byte[] current, int blockSize) {
+        Files.write(local, localFile)
+        byte[] signatures = client.computeSignatures(localFile, blockSize)
+        ByteArrayOutputStream delta = new ByteArrayOutputStream()
+        DeltaEncoder.readSignatures(new ByteArrayInputStream(signatures))
+                    .encode(new ByteArrayInputStream(current), delta)
+        return delta.toByteArray()
+    }
+
+    /**
+     * Applies the given instructions to the local copy, just like the client does.
+     */
+    private byte[] apply(byte[] delta, int blockSize) {
+        ByteArrayOutputStream result = new ByteArrayOutputStream()
+        RandomAccessFile local = new RandomAccessFile(localFile, "r")
+        try {
+            client.applyDelta(new DataInputStream(new ByteArrayInputStream(delta)), local, blockSize, result)
+        } finally {
+            local.close()
+        }
+        return result.toByteArray()
+    }
+
+    /**
+     * Decodes the instructions into lists like <tt>[COPY, firstBlock, numberOfBlocks]</tt> or
+     * <tt>[LITERAL, length]</tt>.
+     */
+    static List instructions(byte[] delta) {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(delta))
+        List result = []
+        while (true) {
+            byte type = input.readByte()
+            if (type == DeltaEncoder.END) {
+                return result
+            } else if (type == DeltaEncoder.COPY) {
+                result.add([DeltaEncoder.COPY, input.readInt(), input.readInt()])
+            } else {
+                int length = input.readInt()
+                input.skipBytes(length)
+                result.add([DeltaEncoder.LITERAL, length])
+            }
+        }
+    }
+
+    static long literalBytes(List instructions) {
+        return instructions.findAll { it[0] == DeltaEncoder.LITERAL }.sum(0) { it[1] }
+    }
+
+    def "unchanged content is sent as a single merged copy instruction"() {
+        given:
+        byte[] content = randomBytes(32 * 2048, 1)
+        when:
+        byte[] delta = encode(content, content, 2048)
+        then:
+        instructions(delta) == [[DeltaEncoder.COPY, 0, 32]]
+        apply(delta, 2048) == content
+    }
+
+    def "a tail shorter than a block is sent as literal"() {
+        given:
+        byte[] content = randomBytes(10 * 2048 + 100, 2)
+        when:
+        byte[] delta = encode(content, content, 2048)
+        then:
+        instructions(delta) == [[DeltaEncoder.COPY, 0, 10], [DeltaEncoder.LITERAL, 100]]
+        apply(delta, 2048) == content
+    }
+
+    def "inserted content is sent as literal and the surrounding blocks are copied"() {
+        given:
+        byte[] local = randomBytes(40 * 2048, 3)
+        byte[] current = Bytes.concat(slice(local, 0, 5000), randomBytes(300, 4), slice(local, 5000, local.length))
+        when:
+        byte[] delta = encode(local, current, 2048)
+        then:
+        apply(delta, 2048) == current
+        literalBytes(instructions(delta)) < 300 + 2 * 2048
+    }
+
+    def "deleted content only breaks the affected blocks"() {
+        given:
+        byte[] local = randomBytes(40 * 2048, 5)
+        byte[] current = Bytes.concat(slice(local, 0, 10000), slice(local, 13000, local.length))
+        when:
+        byte[] delta = encode(local, current, 2048)
+        then:
+        apply(delta, 2048) == current
+        literalBytes(instructions(delta)) < 2 * 2048
+    }
+
+    def "shifted content is found by the rolling checksum"() {
+        given:
+        byte[] local = randomBytes(40 * 2048, 6)
+        byte[] current = Bytes.concat([42] as byte[], local)
+        when:
+        byte[] delta = encode(local, current, 2048)
+        then:
+        instructions(delta) == [[DeltaEncoder.LITERAL, 1], [DeltaEncoder.COPY, 0, 40]]
+        apply(delta, 2048) == current
+    }
+
+    def "blocks which span a refill of the buffer are found"() {
+        given: "blocks which do not evenly divide the buffer and a shift so that no block starts at its beginning"
+        byte[] local = randomBytes(blocks * blockSize, 7)
+        byte[] current = Bytes.concat(randomBytes(7, 8), local)
+        when:
+        byte[] delta = encode(local, current, blockSize)
+        then:
+        instructions(delta) == [[DeltaEncoder.LITERAL, 7], [DeltaEncoder.COPY, 0, blocks]]
+        apply(delta, blockSize) == current
+        where:
+        blockSize | blocks
+        3000      | 100
+        40000     | 10
+    }
+
+    def "the block continuing the current copy is preferred over an identical one"() {
+        given: "a unique block followed by three identical ones"
+        byte[] repeated = randomBytes(2048, 9)
+        byte[] content = Bytes.concat(randomBytes(2048, 10), repeated, repeated, repeated)
+        when:
+        byte[] delta = encode(content, content, 2048)
+        then:
+        instructions(delta) == [[DeltaEncoder.COPY, 0, 4]]
+        apply(delta, 2048) == content
+    }
+}
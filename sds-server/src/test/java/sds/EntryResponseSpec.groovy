@@ -0,0 +1,142 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds
+
+import com.google.common.io.ByteStreams
+import com.google.common.io.Files
+import sirius.kernel.BaseSpecification
+import sirius.kernel.Sirius
+import sirius.kernel.di.Injector
+
+import java.util.zip.Inflater
+import java.util.zip.InflaterInputStream
+
+/**
+ * Sends real HTTP requests to verify that responses written by {@link EntryResponse} pass the pipeline of sirius
+ * unharmed.
+ */
+class EntryResponseSpec extends BaseSpecification {
+
+    static final byte[] STORED_CONTENT = createContent(100000)
+
+    static final byte[] DEFLATED_CONTENT = ("All work and no play makes Jack a dull boy.\n" * 2000).getBytes("UTF-8")
+
+    def repository = Injector.context().getPart(Repository.class)
+
+    def catalog = Injector.context().getPart(VersionCatalog.class)
+
+    def repositoryDir = Files.createTempDir()
+
+    def port = Sirius.getConfig().getInt("http.port")
+
+    static byte[] createContent(int length) {
+        byte[] result = new byte[length]
+        new Random(42).nextBytes(result)
+        return result
+    }
+
+    def setup() {
+        repository.repositoryPath = repositoryDir.getAbsolutePath()
+        catalog.reload()
+        TestArtifacts.publish(repository,
+                              "test",
+                              ["stored.bin": STORED_CONTENT, "deflated.txt": DEFLATED_CONTENT],
+                              ["stored.bin"])
+    }
+
+    def cleanup() {
+        repositoryDir.deleteDir()
+    }
+
+    private HttpURLConnection request(String path, Map<String, String> headers) {
+        HttpURLConnection connection = new URL("http://localhost:" + port + path).openConnection() as HttpURLConnection
+        headers.each { name, value -> connection.setRequestProperty(name, value) }
+        return connection
+    }
+
+    /**
+     * Reads a response with a Content-Length from the given stream, leaving the stream at the start of the next one.
+     */
+    private static Map readResponse(InputStream input) {
+        List<String> lines = []
+        StringBuilder line = new StringBuilder()
+        while (true) {
+            int next = input.read()
+            if (next < 0) {
+                throw new EOFException()
+            }
+            if (next == 10) {
+                if (line.length() == 0) {
+                    break
+                }
+                lines.add(line.toString())
+                line.setLength(0)
+            } else if (next != 13) {
+                line.append((char) next)
+            }
+        }
+        Map<String, String> headers = [:]
+        lines.tail().each { header ->
+            headers.put(header.substring(0, header.indexOf(':')).trim().toLowerCase(),
+                        header.substring(header.indexOf(':') + 1).trim())
+        }
+        byte[] body = new byte[Integer.parseInt(headers.get("content-length"))]
+        ByteStreams.readFully(input, body)
+        return [status: lines.head(), headers: headers, body: body]
+    }
+
+    def "a stored entry is sent unchanged even if the client accepts gzip"() {
+        when:
+        def connection = request("/artifacts/test/1/stored.bin", ["Accept-Encoding": "gzip"])
+        then:
+        connection.getResponseCode() == 200
+        connection.getHeaderField("Content-Encoding") in [null, "identity"]
+        connection.getHeaderField("Content-Length") == String.valueOf(STORED_CONTENT.length)
+        connection.getInputStream().getBytes() == STORED_CONTENT
+    }
+
+    def "a range of a stored entry is sent as partial content"() {
+        when:
+        def connection = request("/artifacts/test/1/stored.bin", ["Range": "bytes=1000-1999"])
+        then:
+        connection.getResponseCode() == 206
+        connection.getHeaderField("Content-Range") == "bytes 1000-1999/" + STORED_CONTENT.length
+        connection.getInputStream().getBytes() == Arrays.copyOfRange(STORED_CONTENT, 1000, 2000)
+    }
+
+    def "a deflated entry is passed through without being compressed again"() {
+        when:
+        def connection = request("/artifacts/test/1/deflated.txt", ["Accept-Encoding": "deflate, gzip"])
+        then:
+        connection.getResponseCode() == 200
+        connection.getHeaderField("Content-Encoding") == "deflate"
+        new InflaterInputStream(connection.getInputStream(), new Inflater(true)).getBytes() == DEFLATED_CONTENT
+    }
+
+    def "several responses are sent over a single kept alive connection"() {
+        given:
+        Socket socket = new Socket("localhost", port)
+        socket.setSoTimeout(10000)
+        when:
+        socket.getOutputStream().write(("GET /artifacts/test/1/stored.bin HTTP/1.1\r\nHost: localhost\r\n" +
+                "Accept-Encoding: gzip\r\n\r\n").getBytes("UTF-8"))
+        def first = readResponse(socket.getInputStream())
+        socket.getOutputStream().write(("GET /artifacts/test/1/stored.bin HTTP/1.1\r\nHost: localhost\r\n" +
+                "Range: bytes=0-99\r\n\r\n").getBytes("UTF-8"))
+        def second = readResponse(socket.getInputStream())
+        then:
+        first.status.contains("200")
+        first.body == STORED_CONTENT
+        and:
+        second.status.contains("206")
+        second.body == Arrays.copyOfRange(STORED_CONTENT, 0, 100)
+        cleanup:
+        socket.close()
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds
+
+import sirius.kernel.BaseSpecification
+
+import java.util.function.IntConsumer
+
+/**
+ * Verifies the streaming parser which the client uses to read JSON indices.
+ * <p>
+ * The client lives in the default package, therefore it is loaded by name.
+ */
+class IndexParserSpec extends BaseSpecification {
+
+    static final String INDEX = '{"error":false,"version":"42","files":[' +
+            '{"name":"lib/a.jar","size":1234567890123,"crc":4294967295,"hash":"00ff"},' +
+            '{"name":"b.txt","size":0,"crc":0,"hash":null}],' +
+            '"removed":[{"name":"old.txt"}]}'
+
+    def client = Class.forName("SDS").newInstance()
+
+    def consumed = []
+
+    private String parse(String json) {
+        return client.readIndex(new ByteArrayInputStream(json.getBytes("UTF-8")), { consumed.add(it) } as IntConsumer)
+    }
+
+    private boolean failsToParse(String json) {
+        try {
+            Class.forName("SDS").newInstance().readIndex(new ByteArrayInputStream(json.getBytes("UTF-8")),
+                                                         {} as IntConsumer)
+            return false
+        } catch (IOException e) {
+            return true
+        }
+    }
+
+    def "files, removed files and the version are read"() {
+        when:
+        String version = parse(INDEX)
+        then:
+        version == "42"
+        consumed == [0, 1]
+        client.numberOfEntries == 2
+        client.entryNames[0] == "lib/a.jar"
+        client.entrySizes[0] == 1234567890123L
+        client.entryCRCs[0] == 4294967295L
+        client.entryHashes[0] == "00ff"
+        client.removedFiles.contains("old.txt")
+    }
+
+    def "a null hash is read as null"() {
+        when:
+        parse(INDEX)
+        then:
+        client.entryNames[1] == "b.txt"
+        client.entryHashes[1] == null
+    }
+
+    def "escapes and surrogate pairs in names are decoded"() {
+        when:
+        parse('{"files":[{"name":"' + escaped + '","size":1,"crc":1}]}')
+        then:
+        client.entryNames[0] == name
+        where:
+        escaped                    | name
+        'a\\"b\\\\c\\/d'           | 'a"b\\c/d'
+        'tab\\tnewline\\n'         | 'tab\tnewline\n'
+        '\\u00e4\\u00F6\\u20ac'    | 'äö€'
+        'smile-\\ud83d\\ude00.txt' | 'smile-😀.txt'
+        'unescaped-äö€'            | 'unescaped-äö€'
+    }
+
+    def "unknown and nested keys are skipped"() {
+        when:
+        String version = parse('{"extra":{"a":[1,{"b":"}]\\"{["}],"c":null},' +
+                                       '"files":[{"unknown":[{"x":[]}],"crc":7,"name":"a.txt","flag":true,"size":3}],' +
+                                       '"key\\u0020with escape":"x","version":"1"}')
+        then:
+        version == "1"
+        client.numberOfEntries == 1
+        client.entryNames[0] == "a.txt"
+        client.entrySizes[0] == 3
+        client.entryCRCs[0] == 7
+    }
+
+    def "the error reported by the server is thrown"() {
+        when:
+        parse('{"error":true,"message":"Unknown artifact: test"}')
+        then:
+        IOException e = thrown(IOException)
+        e.getMessage() == "Unknown artifact: test"
+    }
+
+    def "an error without a message is thrown"() {
+        when:
+        parse('{"error":true}')
+        then:
+        thrown(IOException)
+    }
+
+    def "a truncated index is reported as error"() {
+        expect:
+        !failsToParse(INDEX)
+        (0..<INDEX.length()).every { length -> failsToParse(INDEX.substring(0, length)) }
+    }
+
+    def "the same entries are read as by the generic JSON parser"() {
+        given:
+        def parsed = client.parseJSON(new BufferedReader(new StringReader(INDEX)))
+        def files = client.asArray(client.get(parsed, "files"))
+        when:
+        parse(INDEX)
+        then:
+        files.size() == client.numberOfEntries
+        (0..<files.size()).every { i ->
+            client.entryNames[i] == client.get(files[i], "name") &&
+                    client.entrySizes[i] == client.get(files[i], "size") &&
+                    client.entryCRCs[i] == client.get(files[i], "crc") &&
+                    client.entryHashes[i] == client.get(files[i], "hash")
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds
+
+import com.google.common.io.Files
+import sirius.kernel.BaseSpecification
+import sirius.kernel.di.Injector
+
+import java.util.concurrent.Callable
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+class RepositorySpec extends BaseSpecification {
+
+    def repository = Injector.context().getPart(Repository.class)
+
+    def catalog = Injector.context().getPart(VersionCatalog.class)
+
+    def repositoryDir = Files.createTempDir()
+
+    def executor = Executors.newFixedThreadPool(8)
+
+    def setup() {
+        repository.repositoryPath = repositoryDir.getAbsolutePath()
+        catalog.reload()
+    }
+
+    def cleanup() {
+        executor.shutdownNow()
+        repositoryDir.deleteDir()
+    }
+
+    private int upload(String artifact, String content) {
+        return TestArtifacts.publish(repository, artifact, ["test.txt": content])
+    }
+
+    def "latest of an artifact is resolved while another artifact is being uploaded"() {
+        given:
+        upload("other", "other")
+        and: "an upload of 'test' which holds its write lock"
+        def writeLock = repository.getLock("test").writeLock()
+        writeLock.lock()
+        when:
+        def latest = executor.submit({ repository.getLatestVersion("other") } as Callable)
+        then:
+        latest.get(5, TimeUnit.SECONDS) == 1
+        cleanup:
+        writeLock.unlock()
+    }
+
+    def "latest of an artifact is resolved while the same artifact is being uploaded"() {
+        given:
+        upload("test", "initial")
+        and: "an upload of 'test' which holds its write lock"
+        def writeLock = repository.getLock("test").writeLock()
+        writeLock.lock()
+        when:
+        def latest = executor.submit({ repository.getLatestVersion("test") } as Callable)
+        then:
+        latest.get(5, TimeUnit.SECONDS) == 1
+        cleanup:
+        writeLock.unlock()
+    }
+
+    def "concurrent uploads of the same artifact each publish a version of their own"() {
+        given:
+        upload("test", "initial")
+        def start = new CountDownLatch(1)
+        when:
+        def uploads = (1..5).collect { i ->
+            executor.submit({
+                start.await()
+                upload("test", "version " + i)
+            } as Callable)
+        }
+        def lookups = (1..20).collect {
+            executor.submit({
+                start.await()
+                repository.getLatestVersion("test")
+            } as Callable)
+        }
+        start.countDown()
+        uploads.each { it.get(30, TimeUnit.SECONDS) }
+        then: "every lookup sees a published version"
+        lookups.every { it.get(30, TimeUnit.SECONDS) in (1..6) }
+        and: "every upload got its own version"
+        repository.getLatestVersion("test") == 6
+        repository.getVersions("test").size() == 6
+    }
+}
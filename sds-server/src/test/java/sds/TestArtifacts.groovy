@@ -0,0 +1,69 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds
+
+import java.util.zip.CRC32
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+
+/**
+ * Creates the artifacts used by the specs.
+ */
+class TestArtifacts {
+
+    /**
+     * Writes a ZIP file which contains the given files.
+     *
+     * @param file   the file to write
+     * @param files  the content (either a string or a byte array) of each file by its name
+     * @param stored the names of the files to store uncompressed, all other files are deflated
+     * @return the given file
+     */
+    static File writeZip(File file, Map<String, ?> files, Collection<String> stored = []) {
+        new ZipOutputStream(new FileOutputStream(file)).withStream { out ->
+            files.each { name, content ->
+                byte[] data = toBytes(content)
+                ZipEntry entry = new ZipEntry(name)
+                if (name in stored) {
+                    CRC32 crc = new CRC32()
+                    crc.update(data)
+                    entry.setMethod(ZipEntry.STORED)
+                    entry.setSize(data.length)
+                    entry.setCrc(crc.getValue())
+                }
+                out.putNextEntry(entry)
+                out.write(data)
+                out.closeEntry()
+            }
+        }
+        return file
+    }
+
+    /**
+     * Publishes a new version the same way an upload received via HTTP does.
+     *
+     * @param repository the repository to publish to
+     * @param artifact   the name of the artifact
+     * @param files      the files of the new version, as expected by {@link #writeZip(File, Map, Collection)}
+     * @param stored     the names of the files to store uncompressed
+     * @return the number of the published version
+     */
+    static int publish(Repository repository,
+                       String artifact,
+                       Map<String, ?> files,
+                       Collection<String> stored = []) {
+        File stagingDir = repository.createStagingDirectory(artifact)
+        writeZip(new File(stagingDir, Repository.ARTIFACT_FILE), files, stored)
+        return repository.publishUpload(artifact, stagingDir)
+    }
+
+    static byte[] toBytes(Object content) {
+        return content instanceof byte[] ? (byte[]) content : content.toString().getBytes("UTF-8")
+    }
+}
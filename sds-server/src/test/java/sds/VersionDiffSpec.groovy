@@ -0,0 +1,119 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds
+
+import sirius.kernel.BaseSpecification
+
+class VersionDiffSpec extends BaseSpecification {
+
+    def diffFile = File.createTempFile("sds-diff", ".diff")
+
+    def cleanup() {
+        diffFile.delete()
+    }
+
+    /**
+     * Creates an index containing a file for each given name, whose CRC is the given value.
+     */
+    static ArtifactIndex index(Map<String, Long> files) {
+        return new ArtifactIndex(files.collect { name, crc ->
+            new IndexEntry(name, 10, crc, 10, IndexEntry.STORED, 0)
+        }, false)
+    }
+
+    /**
+     * Applies the given diff to the files of a client, just like the client does.
+     */
+    static Map<String, Long> apply(Map<String, Long> files, VersionDiff diff) {
+        Map<String, Long> result = new HashMap<>(files)
+        diff.getChangedEntries().each { result.put(it.getName(), it.getCrc()) }
+        diff.getRemovedEntries().each { result.remove(it) }
+        return result
+    }
+
+    def "a diff lists added, changed and removed files"() {
+        when:
+        VersionDiff diff = VersionDiff.compute(1, index([a: 1L, b: 1L, c: 1L]), 2, index([a: 1L, b: 2L, d: 1L]))
+        then:
+        diff.getFromVersion() == 1
+        diff.getToVersion() == 2
+        diff.getChangedEntries()*.getName() == ["b", "d"]
+        diff.getRemovedEntries() == ["c"]
+    }
+
+    def "combined diffs lead from the first to the last version"() {
+        given:
+        Map<String, Long> v1 = [unchanged: 1L, changedTwice: 1L, removed: 1L, removedAndReadded: 1L]
+        Map<String, Long> v2 = [unchanged: 1L, changedTwice: 2L, addedAndRemoved: 1L]
+        Map<String, Long> v3 = [unchanged: 1L, changedTwice: 3L, removedAndReadded: 2L]
+        Map<String, Long> v4 = [unchanged: 1L, changedTwice: 3L, removedAndReadded: 2L, added: 1L]
+        when:
+        VersionDiff combined = VersionDiff.compute(1, index(v1), 2, index(v2))
+                                          .then(VersionDiff.compute(2, index(v2), 3, index(v3)))
+                                          .then(VersionDiff.compute(3, index(v3), 4, index(v4)))
+        then:
+        combined.getFromVersion() == 1
+        combined.getToVersion() == 4
+        apply(v1, combined) == v4
+        and: "each changed file is only listed once with its latest entry"
+        combined.getChangedEntries()*.getName() as Set == ["changedTwice", "removedAndReadded", "added"] as Set
+        combined.getChangedEntries().find { it.getName() == "changedTwice" }.getCrc() == 3L
+        and: "a re-added file is no longer removed"
+        combined.getRemovedEntries().contains("removed")
+        !combined.getRemovedEntries().contains("removedAndReadded")
+        !combined.getRemovedEntries().contains("unchanged")
+    }
+
+    def "combining with an empty diff changes nothing but the target version"() {
+        given:
+        VersionDiff diff = VersionDiff.compute(1, index([a: 1L, b: 1L]), 2, index([a: 2L]))
+        when:
+        VersionDiff combined = diff.then(new VersionDiff(2, 3, [], []))
+        then:
+        combined.getToVersion() == 3
+        combined.getChangedEntries()*.getName() == ["a"]
+        combined.getRemovedEntries() == ["b"]
+    }
+
+    def "a diff is read as it was written"() {
+        given:
+        IndexEntry entry = new IndexEntry("a.txt", 10, 1, 8, IndexEntry.DEFLATED, 42, "0123abcd")
+        when:
+        new VersionDiff(1, 2, [entry], ["b.txt"]).write(diffFile)
+        VersionDiff diff = VersionDiff.read(diffFile)
+        then:
+        diff.getFromVersion() == 1
+        diff.getToVersion() == 2
+        diff.getChangedEntries().size() == 1
+        diff.getChangedEntries()[0].getName() == "a.txt"
+        diff.getChangedEntries()[0].getCompressedSize() == 8
+        diff.getChangedEntries()[0].getDataOffset() == 42
+        diff.getChangedEntries()[0].getHash() == "0123abcd"
+        diff.getRemovedEntries() == ["b.txt"]
+    }
+
+    def "a diff written before the entry format was recorded can still be read"() {
+        given: "a diff in format version 1, whose entries are in format version 2 of the index"
+        new DataOutputStream(new FileOutputStream(diffFile)).withStream { out ->
+            out.writeInt(0x53445344)
+            out.writeInt(1)
+            out.writeInt(1)
+            out.writeInt(2)
+            out.writeInt(1)
+            ArtifactIndex.writeEntry(out, new IndexEntry("a.txt", 10, 1, 10, IndexEntry.STORED, 0, "0123abcd"))
+            out.writeInt(0)
+        }
+        when:
+        VersionDiff diff = VersionDiff.read(diffFile)
+        then:
+        diff.getToVersion() == 2
+        diff.getChangedEntries()[0].getHash() == "0123abcd"
+        diff.getRemovedEntries().isEmpty()
+    }
+}
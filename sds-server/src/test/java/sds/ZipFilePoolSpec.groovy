@@ -0,0 +1,58 @@
+/*
+ * Made with all the love in the world
+ * by scireum in Remshalden, Germany
+ *
+ * Copyright by scireum GmbH
+ * http://www.scireum.de - info@scireum.de
+ */
+
+package sds
+
+import com.google.common.io.Files
+import sirius.kernel.BaseSpecification
+
+class ZipFilePoolSpec extends BaseSpecification {
+
+    def dir = Files.createTempDir()
+
+    def pool = new ZipFilePool(maxOpenFiles: 2)
+
+    def cleanup() {
+        dir.deleteDir()
+    }
+
+    private File createZip(String name) {
+        return TestArtifacts.writeZip(new File(dir, name), ["test.txt": name])
+    }
+
+    def "the least recently used file which isn't leased is evicted"() {
+        given:
+        def first = pool.acquire("test", 1, createZip("1.zip"))
+        pool.acquire("test", 2, createZip("2.zip")).close()
+        when:
+        pool.acquire("test", 3, createZip("3.zip")).close()
+        then:
+        pool.getOpenFiles() == 2
+        pool.getEvictions() == 1
+        first.getZipFile().getEntry("test.txt") != null
+        cleanup:
+        first.close()
+    }
+
+    def "an invalidated file which is still leased counts towards the limit until it is released"() {
+        given:
+        def lease = pool.acquire("test", 1, createZip("1.zip"))
+        pool.invalidate("test", 1)
+        when:
+        pool.acquire("test", 2, createZip("2.zip")).close()
+        pool.acquire("test", 3, createZip("3.zip")).close()
+        then: "only one file is kept in the pool"
+        pool.getEvictedFilesInUse() == 1
+        pool.getOpenFiles() == 2
+        when:
+        lease.close()
+        then:
+        pool.getEvictedFilesInUse() == 0
+        pool.getOpenFiles() == 1
+    }
+}